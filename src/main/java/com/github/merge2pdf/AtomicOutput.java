@@ -0,0 +1,156 @@
+package com.github.merge2pdf;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.github.merge2pdf.MergeOptions.FsyncPolicy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Output file which is written to a temporary file in the same directory and renamed to the target once it is
+ * complete, so that readers never see partially written file. Each output has its own uniquely named temporary file,
+ * hence concurrent outputs to the same directory do not collide. The temporary file is removed if the output is
+ * closed without being committed.
+ */
+class AtomicOutput implements Closeable {
+
+	private static final Log	logger		= LogFactory.getLog(AtomicOutput.class);
+
+	private static final int	BUFFER_SIZE	= 1 << 20;
+
+	private final Path			target;
+
+	private final FsyncPolicy	fsyncPolicy;
+
+	private final Path			tempFile;
+
+	private final FileChannel	channel;
+
+	private final OutputStream	stream;
+
+	private boolean				committed;
+
+	AtomicOutput(File target, FsyncPolicy fsyncPolicy) throws IOException {
+		this.target = target.toPath().toAbsolutePath();
+		this.fsyncPolicy = fsyncPolicy;
+
+		Files.createDirectories(this.target.getParent());
+
+		Path file;
+		FileChannel fileChannel;
+
+		while (true) {
+			file = tempFileName(".tmp");
+			try {
+				fileChannel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				break;
+			}
+			catch (FileAlreadyExistsException e) {
+				// Try another name
+			}
+		}
+
+		this.tempFile = file;
+		this.channel = fileChannel;
+		this.stream = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+	}
+
+	/**
+	 * Returns random name of a temporary file next to the target which ends with given suffix. Unlike
+	 * Files.createTempFile() the file gets default permissions. It has hidden name, so that it is not picked up by
+	 * pollers which look for *.pdf.
+	 */
+	private Path tempFileName(String suffix) {
+		return target.resolveSibling("." + target.getFileName() + "."
+		            + Long.toHexString(ThreadLocalRandom.current().nextLong()) + suffix);
+	}
+
+	/**
+	 * Creates an empty temporary file next to the target (i.e. on the same file system) for intermediate content of
+	 * the output. The caller deletes the file.
+	 */
+	Path createTempFile(String suffix) throws IOException {
+		while (true) {
+			try {
+				return Files.createFile(tempFileName(suffix));
+			}
+			catch (FileAlreadyExistsException e) {
+				// Try another name
+			}
+		}
+	}
+
+	/**
+	 * Returns the stream to write the content to. The stream should not be closed.
+	 */
+	OutputStream stream() {
+		return stream;
+	}
+
+	/**
+	 * Flushes written content, forces it to the storage according to the policy and moves the file to the target.
+	 */
+	void commit() throws IOException {
+		stream.flush();
+
+		if (fsyncPolicy != FsyncPolicy.none) {
+			channel.force(true);
+		}
+
+		channel.close();
+
+		try {
+			Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			logger.warn("Atomic move is not supported for " + target + ", replacing it non-atomically");
+			Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		committed = true;
+
+		if (fsyncPolicy == FsyncPolicy.full) {
+			forceDirectory(target.getParent());
+		}
+	}
+
+	/**
+	 * Forces the directory entry of the renamed file to the storage. Not all platforms (i.e. Windows) allow to open
+	 * directory, in which case it is silently skipped.
+	 */
+	private static void forceDirectory(Path dir) {
+		try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			dirChannel.force(true);
+		}
+		catch (IOException e) {
+			logger.debug("Cannot force directory " + dir + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes the temporary file unless the output was committed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (committed) {
+			return;
+		}
+
+		channel.close();
+		Files.deleteIfExists(tempFile);
+	}
+}
@@ -0,0 +1,179 @@
+package com.github.merge2pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * CSV report of the batch run. There is one row per merged output with the number and size of inputs, the number of
+ * pages and size of the output and the time (in milliseconds) spent in each stage. The report ends with batch totals
+ * (where the {@code patients} column counts the rows, the {@code status} column is empty and the last two columns
+ * give the time spent scanning folders and the wall time of the batch) and 50th, 95th and 99th percentiles of each
+ * stage time over merged outputs (skipped and failed ones would distort them).
+ */
+class BatchReport {
+
+	enum Status {
+		merged, skipped, failed
+	}
+
+	private static final class Row {
+		final String	 mrn;
+		final String	 output;
+		final Status	 status;
+		final MergeStats stats;
+		final long		 totalNanos;
+
+		Row(String mrn, String output, Status status, MergeStats stats, long totalNanos) {
+			this.mrn = mrn;
+			this.output = output;
+			this.status = status;
+			this.stats = stats;
+			this.totalNanos = totalNanos;
+		}
+	}
+
+	private static final String				 HEADER	= "mrn,output,status,patients,inputs,input_bytes,output_pages,"
+	            + "output_bytes,scan_ms,parse_ms,image_ms,copy_ms,write_ms,total_ms,folder_scan_ms,elapsed_ms";
+
+	private static final List<ToLongFunction<Row>> TIMES = Arrays.<ToLongFunction<Row>> asList(
+	            row -> row.stats.scanNanos, row -> row.stats.parseNanos, row -> row.stats.imageNanos,
+	            row -> row.stats.copyNanos, row -> row.stats.writeNanos, row -> row.totalNanos);
+
+	/**
+	 * Rows by job index, so that report does not depend on the order jobs are completed.
+	 */
+	private final Map<Integer, Row>			 rows	= new TreeMap<>();
+
+	private final Function<String, String>	 mrnExtractor;
+
+	private long							 folderScanNanos;
+
+	private long							 elapsedNanos;
+
+	BatchReport(Function<String, String> mrnExtractor) {
+		this.mrnExtractor = mrnExtractor;
+	}
+
+	/**
+	 * Sets the time spent scanning folders for the whole batch.
+	 */
+	synchronized void setFolderScanNanos(long folderScanNanos) {
+		this.folderScanNanos = folderScanNanos;
+	}
+
+	/**
+	 * Sets the wall time of the batch. It differs from the sum of per-patient times if patients are merged in
+	 * parallel.
+	 */
+	synchronized void setElapsedNanos(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * Adds the outcome of the job with given index. The MRN is extracted from the first file of the job (the base
+	 * file) and the last file is the output.
+	 */
+	synchronized void add(int jobIndex, List<String> job, Status status, MergeStats stats, long totalNanos) {
+		String mrn = mrnExtractor.apply(new File(PageSelection.fileOf(job.get(0))).getName());
+		rows.put(jobIndex, new Row(mrn, job.get(job.size() - 1), status, stats, totalNanos));
+	}
+
+	synchronized void write(File file) throws IOException {
+		try (PrintWriter writer = new PrintWriter(
+		            new OutputStreamWriter(FileUtils.openOutputStream(file), StandardCharsets.UTF_8))) {
+			writer.println(HEADER);
+
+			MergeStats total = new MergeStats();
+			long totalNanos = 0;
+
+			for (Row row : rows.values()) {
+				writer.println(csv(row.mrn) + "," + csv(row.output) + "," + row.status + ",1," + row.stats.inputs + ","
+				            + row.stats.inputBytes + "," + row.stats.outputPages + "," + row.stats.outputBytes + ","
+				            + times(row) + ",,");
+
+				total.inputs += row.stats.inputs;
+				total.inputBytes += row.stats.inputBytes;
+				total.outputPages += row.stats.outputPages;
+				total.outputBytes += row.stats.outputBytes;
+				total.scanNanos += row.stats.scanNanos;
+				total.parseNanos += row.stats.parseNanos;
+				total.imageNanos += row.stats.imageNanos;
+				total.copyNanos += row.stats.copyNanos;
+				total.writeNanos += row.stats.writeNanos;
+				totalNanos += row.totalNanos;
+			}
+
+			writer.println("TOTAL,,," + rows.size() + "," + total.inputs + "," + total.inputBytes + ","
+			            + total.outputPages + "," + total.outputBytes + ","
+			            + times(new Row(null, null, null, total, totalNanos)) + "," + millis(folderScanNanos) + ","
+			            + millis(elapsedNanos));
+
+			List<Row> merged = new ArrayList<>();
+			for (Row row : rows.values()) {
+				if (row.status == Status.merged) {
+					merged.add(row);
+				}
+			}
+
+			for (int percentile : new int[] { 50, 95, 99 }) {
+				StringBuilder sb = new StringBuilder("P" + percentile + ",,,,,,,");
+				for (ToLongFunction<Row> time : TIMES) {
+					sb.append(',').append(merged.isEmpty() ? "" : millis(percentile(merged, time, percentile)));
+				}
+				writer.println(sb.append(",,"));
+			}
+		}
+	}
+
+	/**
+	 * Returns the given percentile (nearest-rank method) of given time over given (non-empty) rows.
+	 */
+	private static long percentile(List<Row> rows, ToLongFunction<Row> time, int percentile) {
+		List<Long> values = new ArrayList<>();
+		for (Row row : rows) {
+			values.add(time.applyAsLong(row));
+		}
+		values.sort(null);
+
+		int rank = (int) Math.ceil(percentile / 100.0 * values.size());
+		return values.get(Math.max(rank, 1) - 1);
+	}
+
+	private static String times(Row row) {
+		StringBuilder sb = new StringBuilder();
+		for (ToLongFunction<Row> time : TIMES) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(millis(time.applyAsLong(row)));
+		}
+		return sb.toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+	}
+
+	private static String csv(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+}
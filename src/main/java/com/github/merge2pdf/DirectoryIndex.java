@@ -0,0 +1,348 @@
+package com.github.merge2pdf;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Directory listings (file names, MRN keys, sizes and modification times) persisted between runs. When folders are
+ * scanned, only the directories which modification time has changed are listed again, the rest is taken from the
+ * index. Note that modifying the file in place does not change the modification time of its directory, hence sizes
+ * and modification times of such files in the index are not refreshed. Paths, names and keys are escaped in the
+ * index file, so that any name (even with line break) fits on one line.
+ */
+public class DirectoryIndex {
+
+	private static final Log	logger		= LogFactory.getLog(DirectoryIndex.class);
+
+	private static final String	HEADER		= "merge2pdf-index 2";
+
+	/**
+	 * Directories modified within this period before they were listed are listed again next time, as further
+	 * modifications within the same period may not change the modification time on file systems with coarse
+	 * timestamps.
+	 */
+	private static final long	RACY_PERIOD	= 2000;
+
+	/**
+	 * File (or subdirectory) found in indexed directory.
+	 */
+	private static final class Entry {
+		final String	name;
+		final boolean	directory;
+		final String	key;
+		final long		size;
+		final long		lastModified;
+
+		Entry(String name, boolean directory, String key, long size, long lastModified) {
+			this.name = name;
+			this.directory = directory;
+			this.key = key;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * File found by {@link DirectoryIndex#find(Path, Map, String)}.
+	 */
+	public static final class FileEntry {
+		public final Path	path;
+		public final String	key;
+		public final long	size;
+		public final long	lastModified;
+
+		FileEntry(Path path, Entry entry) {
+			this.path = path;
+			this.key = entry.key;
+			this.size = entry.size;
+			this.lastModified = entry.lastModified;
+		}
+	}
+
+	private static final class Listing {
+		final long			lastModified;
+		final List<Entry>	entries;
+
+		Listing(long lastModified, List<Entry> entries) {
+			this.lastModified = lastModified;
+			this.entries = entries;
+		}
+	}
+
+	private final File						file;
+
+	private final String					keySpec;
+
+	private final Function<String, String>	keyExtractor;
+
+	private final Map<Path, Listing>		listings = new HashMap<>();
+
+	/**
+	 * Listings which were used during this run. Only these are saved.
+	 */
+	private final Map<Path, Listing>		visited	 = new HashMap<>();
+
+	private int								listed;
+
+	private DirectoryIndex(File file, String keySpec, Function<String, String> keyExtractor) {
+		this.file = file;
+		this.keySpec = keySpec;
+		this.keyExtractor = keyExtractor;
+	}
+
+	/**
+	 * Loads the index from given file. Missing or unreadable index is treated as empty one. The keys are recalculated
+	 * if the index was created with different key extractor, as identified by {@code keySpec}.
+	 */
+	public static DirectoryIndex load(File file, String keySpec, Function<String, String> keyExtractor) {
+		DirectoryIndex index = new DirectoryIndex(file, keySpec, keyExtractor);
+
+		if (!file.isFile()) {
+			return index;
+		}
+
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(reader.readLine())) {
+				logger.warn("Ignoring index " + file + " of unknown format");
+				return index;
+			}
+
+			boolean sameKeys = keySpec.equals(reader.readLine());
+			List<Entry> entries = null;
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", line.startsWith("F") ? 5 : line.startsWith("D") ? 3 : 2);
+				switch (parts[0]) {
+				case "D":
+					entries = new ArrayList<>();
+					index.listings.put(Paths.get(unescape(parts[2])),
+					            new Listing(Long.parseLong(parts[1]), entries));
+					break;
+				case "S":
+					entries.add(new Entry(unescape(parts[1]), true, null, 0, 0));
+					break;
+				case "F":
+					String name = unescape(parts[4]);
+					String key = parts[3].isEmpty() ? null : unescape(parts[3]);
+					if (!sameKeys) {
+						key = keyExtractor.apply(name);
+					}
+					entries.add(new Entry(name, false, key, Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+					break;
+				default:
+					throw new IOException("Unexpected line " + line);
+				}
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			logger.warn("Ignoring corrupted index " + file + ": " + e.getMessage());
+			index.listings.clear();
+		}
+
+		return index;
+	}
+
+	/**
+	 * Returns files under given folder which path contains one of given dates and which have given extension (if
+	 * not {@code null}). Files are ordered by date (in the order of the window) and then by directory traversal
+	 * order. Directories which name contains only dates outside the window are not descended into.
+	 */
+	public List<FileEntry> find(Path root, Map<String, Integer> window, String extension) throws IOException {
+		List<List<FileEntry>> filesByDate = new ArrayList<>();
+		for (int i = 0; i < window.size(); i++) {
+			filesByDate.add(new ArrayList<>());
+		}
+
+		find(root, window, extension, filesByDate);
+
+		List<FileEntry> list = new ArrayList<>();
+		for (List<FileEntry> files : filesByDate) {
+			list.addAll(files);
+		}
+		return list;
+	}
+
+	private void find(Path dir, Map<String, Integer> window, String extension, List<List<FileEntry>> filesByDate)
+	            throws IOException {
+		for (Entry entry : list(dir)) {
+			Path path = dir.resolve(entry.name);
+
+			if (entry.directory) {
+				if (!FindPdfs.isOutsideWindow(entry.name, window)) {
+					find(path, window, extension, filesByDate);
+				}
+			}
+			else if (extension == null || FilenameUtils.getExtension(entry.name).equals(extension)) {
+				int index = FindPdfs.matchDate(path.toString(), window);
+				if (index >= 0) {
+					filesByDate.get(index).add(new FileEntry(path, entry));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the entries of given directory either from the index (if directory was not modified) or from the file
+	 * system.
+	 */
+	private List<Entry> list(Path dir) throws IOException {
+		long lastModified = Files.getLastModifiedTime(dir).toMillis();
+		Listing listing = listings.get(dir);
+
+		if (listing == null || listing.lastModified != lastModified) {
+			List<Entry> entries = new ArrayList<>();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path path : stream) {
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					}
+					catch (NoSuchFileException e) {
+						// File was removed while listing:
+						continue;
+					}
+
+					String name = path.getFileName().toString();
+
+					if (attrs.isDirectory()) {
+						entries.add(new Entry(name, true, null, 0, 0));
+					}
+					else if (attrs.isRegularFile()) {
+						entries.add(new Entry(name, false, keyExtractor.apply(name), attrs.size(),
+						            attrs.lastModifiedTime().toMillis()));
+					}
+				}
+			}
+
+			listing = new Listing(System.currentTimeMillis() - lastModified < RACY_PERIOD ? -1 : lastModified, entries);
+			listings.put(dir, listing);
+			listed++;
+		}
+
+		visited.put(dir, listing);
+
+		return listing.entries;
+	}
+
+	/**
+	 * Returns the number of directories which were listed from the file system (i.e. were new or modified).
+	 */
+	public int getListedDirectories() {
+		return listed;
+	}
+
+	/**
+	 * Saves directory listings used during this run. The index is first written to temporary file which then replaces
+	 * the index so that interrupted save does not corrupt the index.
+	 */
+	public void save() throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+
+		try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(HEADER + "\n" + keySpec + "\n");
+
+			for (Map.Entry<Path, Listing> listing : visited.entrySet()) {
+				writer.write("D\t" + listing.getValue().lastModified + "\t" + escape(listing.getKey().toString())
+				            + "\n");
+
+				for (Entry entry : listing.getValue().entries) {
+					if (entry.directory) {
+						writer.write("S\t" + escape(entry.name) + "\n");
+					}
+					else {
+						writer.write("F\t" + entry.size + "\t" + entry.lastModified + "\t"
+						            + (entry.key == null ? "" : escape(entry.key)) + "\t" + escape(entry.name) + "\n");
+					}
+				}
+			}
+		}
+
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Escapes backslash, tab and line break characters of given value.
+	 */
+	private static String escape(String value) {
+		StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String unescape(String value) throws IOException {
+		if (value.indexOf('\\') < 0) {
+			return value;
+		}
+
+		StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+
+			if (++i == value.length()) {
+				throw new IOException("Unterminated escape in " + value);
+			}
+
+			switch (value.charAt(i)) {
+			case '\\':
+				sb.append('\\');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			default:
+				throw new IOException("Unexpected escape in " + value);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,99 @@
+package com.github.merge2pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Removes files with identical content (like the same report copied to several source folders or exported on
+ * different days). Files are compared by size first and only files of the same size are read to calculate their
+ * content hash.
+ */
+class DuplicateFiles {
+
+	private static final Log	logger		= LogFactory.getLog(DuplicateFiles.class);
+
+	private static final int	BUFFER_SIZE	= 64 * 1024;
+
+	private DuplicateFiles() {
+	}
+
+	/**
+	 * Returns given files without the ones which content is identical to a file earlier in the list. A file which
+	 * cannot be read is kept.
+	 */
+	static List<File> removeDuplicates(List<File> files) {
+		Map<Long, List<File>> filesBySize = new HashMap<>();
+		Map<File, byte[]> hashes = new HashMap<>();
+		List<File> unique = new ArrayList<>();
+
+		for (File file : files) {
+			List<File> sameSize = filesBySize.computeIfAbsent(file.length(), k -> new ArrayList<>());
+
+			if (!sameSize.isEmpty() && isDuplicate(file, sameSize, hashes)) {
+				continue;
+			}
+
+			sameSize.add(file);
+			unique.add(file);
+		}
+
+		return unique;
+	}
+
+	private static boolean isDuplicate(File file, List<File> sameSize, Map<File, byte[]> hashes) {
+		try {
+			byte[] hash = hash(file, hashes);
+
+			for (File other : sameSize) {
+				if (Arrays.equals(hash, hash(other, hashes))) {
+					logger.info("Skipping " + file + " as it is identical to " + other);
+					return true;
+				}
+			}
+		}
+		catch (IOException e) {
+			logger.warn("Cannot compare " + file + ": " + e.getMessage());
+		}
+
+		return false;
+	}
+
+	private static byte[] hash(File file, Map<File, byte[]> hashes) throws IOException {
+		byte[] hash = hashes.get(file);
+
+		if (hash == null) {
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			try (InputStream is = Files.newInputStream(file.toPath())) {
+				int read;
+				while ((read = is.read(buffer)) >= 0) {
+					digest.update(buffer, 0, read);
+				}
+			}
+
+			hash = digest.digest();
+			hashes.put(file, hash);
+		}
+
+		return hash;
+	}
+}
@@ -4,50 +4,282 @@ import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
-import java.text.DateFormat;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class FindPdfs {
 
+    /**
+     * Default number of days (including today) which are looked back in source folders.
+     */
+    public static final int DEFAULT_LOOKBACK_DAYS = 7;
+
+    private static final Pattern DATE_PATTERN = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+
     public static List<File> findToPaths(String rootPath) throws IOException {
-//        return Files.walk(Paths.get(rootPath))
-//                .filter(x -> FilenameUtils.getExtension(x.toString()).equals("pdf"))
-//                .map(Path::toFile)
-//                .map(path -> path.getFileName().toString())
-//                .collect(Collectors.toList());
-        Date now = new Date();
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");//设置日期格式
-        String current = dateFormat.format(now);//格式化然后放入字符串中
-        return Files.walk(Paths.get(rootPath))
-                .filter(s -> s.toString().contains(current))
-                .filter(x -> FilenameUtils.getExtension(x.toString()).equals("pdf"))
-                .map(Path::toFile)
-                .collect(Collectors.toList());
+        return findToPaths(rootPath, null, 1);
+    }
+
+    /**
+     * Returns PDF files under given folder which path contains today's date. If directory index is given, only
+     * modified directories are listed. Otherwise up to {@code scanThreads} directories are listed concurrently.
+     */
+    public static List<File> findToPaths(String rootPath, DirectoryIndex index, int scanThreads) throws IOException {
+        return findPaths(rootPath, lookbackDates(1), "pdf", index, scanThreads);
     }
 
     public static List<File> findFromPaths(String rootPath) throws IOException {
-        List<File> list = new ArrayList<>();
+        return findFromPaths(rootPath, DEFAULT_LOOKBACK_DAYS, null, 1);
+    }
+
+    /**
+     * Returns files under given folder which path contains one of the last {@code days} dates. Files are ordered by
+     * date (oldest first) and then by directory traversal order. If directory index is given, only modified
+     * directories are listed. Otherwise up to {@code scanThreads} directories are listed concurrently.
+     */
+    public static List<File> findFromPaths(String rootPath, int days, DirectoryIndex index, int scanThreads)
+            throws IOException {
+        return findPaths(rootPath, lookbackDates(days), null, index, scanThreads);
+    }
+
+    /**
+     * Returns the dates formatted as {@code yyyy-MM-dd} for the last {@code days} days (including today) mapped to
+     * their index, oldest date first.
+     */
+    static Map<String, Integer> lookbackDates(int days) {
+        Map<String, Integer> dates = new LinkedHashMap<>();
         Date now = new Date();
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");//设置日期格式
         Calendar c = Calendar.getInstance();
-        for (int i = 6; i >= 0; i--) {
-            //过去七天
+        for (int i = days - 1; i >= 0; i--) {
             c.setTime(now);
             c.add(Calendar.DATE, -i);
-            Date d = c.getTime();
-            String current = dateFormat.format(d);//格式化然后放入字符串中
-            list.addAll(Files.walk(Paths.get(rootPath))
-                    .filter(Files::isRegularFile)
-                    .filter(s -> s.toString().contains(current))
-                    .map(Path::toFile)
-                    .collect(Collectors.toList()));
+            dates.put(dateFormat.format(c.getTime()), dates.size());
+        }
+        return dates;
+    }
+
+    private static List<File> findPaths(String rootPath, Map<String, Integer> dates, String extension,
+            DirectoryIndex index, int scanThreads) throws IOException {
+        if (index == null) {
+            return findPaths(rootPath, dates, extension, scanThreads);
+        }
+
+        List<File> list = new ArrayList<>();
+        for (DirectoryIndex.FileEntry entry : index.find(Paths.get(rootPath), dates, extension)) {
+            list.add(entry.path.toFile());
+        }
+        return list;
+    }
+
+    /**
+     * Walks the tree once matching every file against all given dates. Directories which name contains a date
+     * outside of the window are not descended into. Up to {@code scanThreads} directories are listed concurrently,
+     * which pays off on network file systems where each listing is a round trip.
+     */
+    private static List<File> findPaths(String rootPath, Map<String, Integer> dates, String extension,
+            int scanThreads) throws IOException {
+        List<Path> files;
+        ForkJoinPool pool = new ForkJoinPool(scanThreads);
+        try {
+            files = pool.invoke(new DirectoryWalk(Paths.get(rootPath), true, dates, extension));
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        // Files are collected per date to preserve "oldest date first" order:
+        List<List<File>> filesByDate = new ArrayList<>();
+        for (int i = 0; i < dates.size(); i++) {
+            filesByDate.add(new ArrayList<>());
+        }
+
+        for (Path file : files) {
+            int index = matchDate(file.toString(), dates);
+            if (index >= 0) {
+                filesByDate.get(index).add(file.toFile());
+            }
+        }
+
+        List<File> list = new ArrayList<>();
+        for (List<File> filesOfDate : filesByDate) {
+            list.addAll(filesOfDate);
         }
         return list;
     }
-}
\ No newline at end of file
+
+    /**
+     * Lists one directory and forks the listing of its subdirectories. Returns the files with given extension (if
+     * not {@code null}) of the directory followed by the files of the subdirectories in the listing order.
+     */
+    private static class DirectoryWalk extends RecursiveTask<List<Path>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        private final boolean root;
+
+        private final Map<String, Integer> dates;
+
+        private final String extension;
+
+        DirectoryWalk(Path dir, boolean root, Map<String, Integer> dates, String extension) {
+            this.dir = dir;
+            this.root = root;
+            this.dates = dates;
+            this.extension = extension;
+        }
+
+        @Override
+        protected List<Path> compute() {
+            List<Path> files = new ArrayList<>();
+            List<DirectoryWalk> subdirectories = new ArrayList<>();
+
+            try {
+                // Walking one level deep gets the attributes of the entries together with the listing where the file
+                // system provides them (e.g. on Windows) instead of reading them for each entry:
+                Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isDirectory()) {
+                            if (!isOutsideWindow(file.getFileName().toString(), dates)) {
+                                subdirectories.add(new DirectoryWalk(file, false, dates, extension));
+                            }
+                        }
+                        else if (attrs.isRegularFile() && (extension == null
+                                || FilenameUtils.getExtension(file.toString()).equals(extension))) {
+                            files.add(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                        if (e instanceof NoSuchFileException && !file.equals(dir)) {
+                            // File was removed while listing:
+                            return FileVisitResult.CONTINUE;
+                        }
+                        throw e;
+                    }
+                });
+            }
+            catch (NoSuchFileException e) {
+                if (root) {
+                    throw new UncheckedIOException(e);
+                }
+                // Subdirectory was removed while walking:
+                return files;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            invokeAll(subdirectories);
+
+            for (DirectoryWalk subdirectory : subdirectories) {
+                files.addAll(subdirectory.join());
+            }
+            return files;
+        }
+    }
+
+    /**
+     * Returns the index of the oldest date from the window which occurs in the given path or {@code -1}.
+     */
+    static int matchDate(String path, Map<String, Integer> dates) {
+        int index = -1;
+        Matcher matcher = DATE_PATTERN.matcher(path);
+        for (int start = 0; start < path.length() && matcher.find(start); start = matcher.start() + 1) {
+            Integer i = dates.get(matcher.group());
+            if (i != null && (index < 0 || i < index)) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns {@code true} if given directory name contains dates but none of them is in the window.
+     */
+    static boolean isOutsideWindow(String name, Map<String, Integer> dates) {
+        Matcher matcher = DATE_PATTERN.matcher(name);
+        boolean hasDate = false;
+        while (matcher.find()) {
+            if (dates.containsKey(matcher.group())) {
+                return false;
+            }
+            hasDate = true;
+        }
+        return hasDate;
+    }
+
+    /**
+     * Scans given source folders once and groups the found files by the key (MRN) extracted from their names. The
+     * order of files within each group is the order of {@code rootPaths} followed by the order of
+     * {@link #findFromPaths(String, int, DirectoryIndex, int)}. Files for which no key can be extracted are skipped. If
+     * directory index is given, the keys are taken from the index and only modified directories are listed.
+     */
+    public static Map<String, List<File>> indexFromPaths(List<String> rootPaths, int days,
+            Function<String, String> keyExtractor, DirectoryIndex directoryIndex, int scanThreads) throws IOException {
+        Map<String, List<File>> index = new LinkedHashMap<>();
+        for (String rootPath : rootPaths) {
+            if (directoryIndex == null) {
+                for (File file : findFromPaths(rootPath, days, null, scanThreads)) {
+                    String key = keyExtractor.apply(file.getName());
+                    if (key != null) {
+                        index.computeIfAbsent(key, k -> new ArrayList<>()).add(file);
+                    }
+                }
+            }
+            else {
+                for (DirectoryIndex.FileEntry entry : directoryIndex.find(Paths.get(rootPath), lookbackDates(days),
+                        null)) {
+                    if (entry.key != null) {
+                        index.computeIfAbsent(entry.key, k -> new ArrayList<>()).add(entry.path.toFile());
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the key extractor which takes first {@code length} characters of the file name or {@code null} if the
+     * file name is shorter.
+     */
+    public static Function<String, String> prefixKey(int length) {
+        return fileName -> fileName.length() < length ? null : fileName.substring(0, length);
+    }
+
+    /**
+     * Returns the key extractor which takes the first group (or the whole match if pattern has no groups) of the
+     * first match of given pattern in the file name or {@code null} if there is no match.
+     */
+    public static Function<String, String> patternKey(Pattern pattern) {
+        return fileName -> {
+            Matcher matcher = pattern.matcher(fileName);
+            if (!matcher.find()) {
+                return null;
+            }
+            return matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+        };
+    }
+}
@@ -0,0 +1,577 @@
+package com.github.merge2pdf;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.github.merge2pdf.MergeToPdf.Opt;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Long-running variant of {@code --based} batch. Watches the base and source folders and merges only the patients
+ * which files have arrived, changed or were removed. Changes are collected per MRN and the patient is merged once no
+ * further changes arrived for the given quiet period. The file index is kept up to date from the events, hence the
+ * folders are fully rescanned only when the day changes or when events were lost.
+ */
+class FolderWatcher implements Closeable {
+
+	private static final Log						 logger				 = LogFactory.getLog(FolderWatcher.class);
+
+	/**
+	 * Root index of the base folder. Source folders are indexed from 0 in the order they were given.
+	 */
+	private static final int						 BASE_ROOT			 = -1;
+
+	/**
+	 * Number of patients waiting for a free thread, per thread.
+	 */
+	private static final int						 QUEUED_PER_THREAD	 = 2;
+
+	private static final class WatchedDirectory {
+		final Path	dir;
+		final int	root;
+
+		WatchedDirectory(Path dir, int root) {
+			this.dir = dir;
+			this.root = root;
+		}
+	}
+
+	private final CommandLine						 cli;
+
+	private final MergeEngine						 engine;
+
+	private final int								 days;
+
+	private final Function<String, String>			 mrnExtractor;
+
+	private final DirectoryIndex					 directoryIndex;
+
+	private final int								 scanThreads;
+
+	private final long								 quietNanos;
+
+	private final Path								 basePath;
+
+	private final List<Path>						 fromPaths			 = new ArrayList<>();
+
+	private final boolean							 incremental;
+
+	private final String							 settings;
+
+	private final SharedPdfs						 sharedPdfs;
+
+	private final WatchService						 watchService;
+
+	private final ThreadPoolExecutor				 executor;
+
+	private final Map<WatchKey, WatchedDirectory>	 watchedDirectories	 = new HashMap<>();
+
+	/**
+	 * Base files per MRN.
+	 */
+	private final Map<String, Set<Path>>			 baseFiles			 = new HashMap<>();
+
+	/**
+	 * Source files per MRN mapped to the root index of their source folder.
+	 */
+	private final Map<String, Map<Path, Integer>>	 fromFiles			 = new HashMap<>();
+
+	/**
+	 * MRNs which files have changed mapped to the time of the last change.
+	 */
+	private final Map<String, Long>					 pending			 = new LinkedHashMap<>();
+
+	/**
+	 * MRNs which are queued or being merged.
+	 */
+	private final Set<String>						 inFlight			 = ConcurrentHashMap.newKeySet();
+
+	private final Map<File, Journal>				 journals			 = new HashMap<>();
+
+	private Map<String, Integer>					 baseWindow;
+
+	private Map<String, Integer>					 fromWindow;
+
+	private volatile boolean						 closed;
+
+	FolderWatcher(CommandLine cli, MergeEngine engine, int days, Function<String, String> mrnExtractor,
+	            DirectoryIndex directoryIndex, int threads, int scanThreads, long quietMillis) throws IOException {
+		this.cli = cli;
+		this.engine = engine;
+		this.days = days;
+		this.mrnExtractor = mrnExtractor;
+		this.directoryIndex = directoryIndex;
+		this.scanThreads = scanThreads;
+		this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+		this.basePath = Paths.get(cli.getOptionValue(Opt.based.value()));
+		for (String fromPath : cli.getArgList()) {
+			fromPaths.add(Paths.get(fromPath));
+		}
+		this.incremental = cli.hasOption(Opt.incremental.value());
+		this.settings = MergeToPdf.mergeSettings(cli);
+		this.sharedPdfs = new SharedPdfs(Collections.singleton(MergeToPdf.coverFile(cli)));
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+		            new ArrayBlockingQueue<>(threads * QUEUED_PER_THREAD));
+	}
+
+	/**
+	 * Watches the folders until the thread is interrupted, the watcher is closed or JVM is shut down. Files modified
+	 * at or after given time (the start of the batch which preceded watching) are treated as changed, as they could
+	 * have arrived before the folders were registered.
+	 */
+	void run(long changedSince) throws IOException {
+		Thread shutdownHook = new Thread(this::close);
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+		try {
+			baseWindow = FindPdfs.lookbackDates(1);
+			fromWindow = FindPdfs.lookbackDates(days);
+
+			// Folders are registered before they are scanned so that no file falls in between:
+			registerRoots(false);
+			rebuildIndex(changedSince);
+
+			logger.info("Watching " + watchedDirectories.size() + " directories for changes");
+
+			long pollMillis = Math.max(50, Math.min(1000, TimeUnit.NANOSECONDS.toMillis(quietNanos) / 2));
+
+			while (!closed) {
+				WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+
+				while (key != null) {
+					processEvents(key);
+					key = watchService.poll();
+				}
+
+				if (!FindPdfs.lookbackDates(1).equals(baseWindow)) {
+					logger.info("Day has changed, rescanning folders");
+					baseWindow = FindPdfs.lookbackDates(1);
+					fromWindow = FindPdfs.lookbackDates(days);
+					unregisterOutsideWindow();
+					registerRoots(true);
+					rebuildIndex(Long.MAX_VALUE);
+				}
+
+				dispatch();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ClosedWatchServiceException e) {
+			// Watcher was closed
+		}
+		finally {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			}
+			catch (IllegalStateException e) {
+				// JVM is shutting down
+			}
+		}
+	}
+
+	/**
+	 * Stops watching and waits for queued merges to complete.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		try {
+			watchService.close();
+		}
+		catch (IOException e) {
+			logger.warn(e.getMessage());
+		}
+
+		executor.shutdown();
+
+		try {
+			if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				logger.warn("Merges are still running after watcher was closed");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (journals) {
+			for (Journal journal : journals.values()) {
+				try {
+					journal.close();
+				}
+				catch (IOException e) {
+					logger.warn(e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers the base and source folders with the watch service. Directories which are already watched are kept.
+	 * Files in newly registered directories are treated as created if requested, e.g. when the directory has entered
+	 * the lookback window as the day changed.
+	 */
+	private void registerRoots(boolean changed) throws IOException {
+		registerTree(basePath, BASE_ROOT, false, changed);
+		for (int i = 0; i < fromPaths.size(); i++) {
+			registerTree(fromPaths.get(i), i, false, changed);
+		}
+	}
+
+	/**
+	 * Registers given directory and its subdirectories with the watch service. Directories which name contains only
+	 * dates outside of the lookback window are not registered unless the directory has just been created. The files
+	 * found in newly registered directories are treated as created if requested, as they could be written before the
+	 * directory was registered.
+	 */
+	private void registerTree(Path start, int root, boolean created, boolean changed) throws IOException {
+		Set<Path> watched = new HashSet<>();
+		for (WatchedDirectory directory : watchedDirectories.values()) {
+			watched.add(directory.dir);
+		}
+
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (!created && !dir.equals(start)
+				            && FindPdfs.isOutsideWindow(dir.getFileName().toString(), window(root))) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				if (!watched.contains(dir)) {
+					WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+					watchedDirectories.put(key, new WatchedDirectory(dir, root));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (changed && !watched.contains(file.getParent())) {
+					addFile(file, root, true);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Stops watching the directories which have left the lookback window, i.e. which path below their root folder
+	 * contains directory name with dates outside of the window only.
+	 */
+	private void unregisterOutsideWindow() {
+		for (Iterator<Map.Entry<WatchKey, WatchedDirectory>> it = watchedDirectories.entrySet().iterator(); it
+		            .hasNext();) {
+			Map.Entry<WatchKey, WatchedDirectory> entry = it.next();
+			WatchedDirectory watched = entry.getValue();
+			Path rootPath = watched.root == BASE_ROOT ? basePath : fromPaths.get(watched.root);
+
+			for (Path name : rootPath.relativize(watched.dir)) {
+				if (FindPdfs.isOutsideWindow(name.toString(), window(watched.root))) {
+					entry.getKey().cancel();
+					it.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	private void processEvents(WatchKey key) throws IOException {
+		WatchedDirectory watched = watchedDirectories.get(key);
+
+		if (watched == null) {
+			// Key of removed directory which was signalled before it was cancelled:
+			return;
+		}
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				logger.warn("File system events were lost, rescanning folders");
+				rebuildIndex(Long.MAX_VALUE);
+				for (String mrn : baseFiles.keySet()) {
+					touch(mrn);
+				}
+				continue;
+			}
+
+			Path path = watched.dir.resolve((Path) event.context());
+
+			if (event.kind() == ENTRY_DELETE) {
+				if (!removeFile(path, watched.root)) {
+					// Deleted or moved directory does not report its content:
+					removeTree(path, watched.root);
+				}
+			}
+			else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				if (event.kind() == ENTRY_CREATE) {
+					registerTree(path, watched.root, true, true);
+				}
+			}
+			else {
+				addFile(path, watched.root, true);
+			}
+		}
+
+		if (!key.reset()) {
+			watchedDirectories.remove(key);
+		}
+	}
+
+	/**
+	 * Replaces the file index with the result of the full scan of all folders. Files modified at or after given time
+	 * are marked as changed.
+	 */
+	private void rebuildIndex(long changedSince) throws IOException {
+		baseFiles.clear();
+		fromFiles.clear();
+
+		for (File file : FindPdfs.findToPaths(basePath.toString(), directoryIndex, scanThreads)) {
+			addFile(file.toPath(), BASE_ROOT, file.lastModified() >= changedSince);
+		}
+		for (int i = 0; i < fromPaths.size(); i++) {
+			for (File file : FindPdfs.findFromPaths(fromPaths.get(i).toString(), days, directoryIndex, scanThreads)) {
+				addFile(file.toPath(), i, file.lastModified() >= changedSince);
+			}
+		}
+
+		if (directoryIndex != null) {
+			directoryIndex.save();
+		}
+	}
+
+	private Map<String, Integer> window(int root) {
+		return root == BASE_ROOT ? baseWindow : fromWindow;
+	}
+
+	/**
+	 * Adds given file to the index if it is within the lookback window and marks its patient as changed if requested.
+	 */
+	private void addFile(Path file, int root, boolean changed) {
+		if (root == BASE_ROOT && !FilenameUtils.getExtension(file.toString()).equals("pdf")) {
+			return;
+		}
+
+		String mrn = mrnExtractor.apply(file.getFileName().toString());
+
+		if (mrn == null || FindPdfs.matchDate(file.toString(), window(root)) < 0
+		            || !Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+
+		if (root == BASE_ROOT) {
+			baseFiles.computeIfAbsent(mrn, k -> new TreeSet<>()).add(file);
+		}
+		else {
+			fromFiles.computeIfAbsent(mrn, k -> new HashMap<>()).put(file, root);
+		}
+
+		if (changed) {
+			touch(mrn);
+		}
+	}
+
+	/**
+	 * Removes given file from the index and marks its patient as changed. Returns {@code false} if the file was not
+	 * indexed (e.g. it is a directory).
+	 */
+	private boolean removeFile(Path file, int root) {
+		String mrn = mrnExtractor.apply(file.getFileName().toString());
+
+		if (mrn == null) {
+			return false;
+		}
+
+		boolean removed;
+
+		if (root == BASE_ROOT) {
+			Set<Path> files = baseFiles.get(mrn);
+			removed = files != null && files.remove(file);
+		}
+		else {
+			Map<Path, Integer> files = fromFiles.get(mrn);
+			removed = files != null && files.remove(file) != null;
+		}
+
+		if (removed) {
+			touch(mrn);
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Removes the files under given directory from the index, marks their patients as changed and stops watching the
+	 * directory and its subdirectories.
+	 */
+	private void removeTree(Path dir, int root) {
+		if (root == BASE_ROOT) {
+			for (Map.Entry<String, Set<Path>> entry : baseFiles.entrySet()) {
+				if (entry.getValue().removeIf(file -> file.startsWith(dir))) {
+					touch(entry.getKey());
+				}
+			}
+		}
+		else {
+			for (Map.Entry<String, Map<Path, Integer>> entry : fromFiles.entrySet()) {
+				if (entry.getValue().keySet().removeIf(file -> file.startsWith(dir))) {
+					touch(entry.getKey());
+				}
+			}
+		}
+
+		for (Iterator<Map.Entry<WatchKey, WatchedDirectory>> it = watchedDirectories.entrySet().iterator(); it
+		            .hasNext();) {
+			Map.Entry<WatchKey, WatchedDirectory> entry = it.next();
+			if (entry.getValue().root == root && entry.getValue().dir.startsWith(dir)) {
+				entry.getKey().cancel();
+				it.remove();
+			}
+		}
+	}
+
+	private void touch(String mrn) {
+		pending.remove(mrn);
+		pending.put(mrn, System.nanoTime());
+	}
+
+	/**
+	 * Queues the merge of the patients which files have not changed for the quiet period. Patients which are being
+	 * merged or which do not fit into the queue stay pending.
+	 */
+	private void dispatch() throws IOException {
+		long now = System.nanoTime();
+
+		for (Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Long> entry = it.next();
+			String mrn = entry.getKey();
+
+			if (now - entry.getValue() < quietNanos || inFlight.contains(mrn)) {
+				continue;
+			}
+
+			List<List<String>> jobs = createJobs(mrn);
+
+			if (jobs.isEmpty()) {
+				// There is no base file (yet) for this patient:
+				it.remove();
+				continue;
+			}
+
+			List<Journal> jobJournals = new ArrayList<>();
+			for (List<String> job : jobs) {
+				jobJournals.add(incremental ? journalFor(new File(job.get(job.size() - 1))) : null);
+			}
+
+			inFlight.add(mrn);
+
+			try {
+				executor.execute(() -> {
+					try {
+						for (int i = 0; i < jobs.size(); i++) {
+							MergeToPdf.mergeJob(engine, jobs.get(i), jobJournals.get(i), settings, sharedPdfs, null,
+							            -1);
+						}
+					}
+					finally {
+						inFlight.remove(mrn);
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				// Queue is full, patient will be dispatched on the next round:
+				inFlight.remove(mrn);
+				break;
+			}
+
+			it.remove();
+		}
+	}
+
+	/**
+	 * Creates merge jobs for all base files of given patient. Source files are ordered by source folder, then by
+	 * date (oldest first) and then by path.
+	 */
+	private List<List<String>> createJobs(String mrn) {
+		List<List<String>> jobs = new ArrayList<>();
+		Set<Path> patientBaseFiles = baseFiles.get(mrn);
+
+		if (patientBaseFiles == null) {
+			return jobs;
+		}
+
+		Map<Path, Integer> patientFromFiles = fromFiles.getOrDefault(mrn, new HashMap<>());
+		List<Path> sortedFromFiles = new ArrayList<>(patientFromFiles.keySet());
+		sortedFromFiles.sort(Comparator.<Path> comparingInt(patientFromFiles::get)
+		            .thenComparingInt(file -> FindPdfs.matchDate(file.toString(), fromWindow))
+		            .thenComparing(Comparator.naturalOrder()));
+
+		List<File> from = new ArrayList<>();
+		for (Path file : sortedFromFiles) {
+			from.add(file.toFile());
+		}
+
+		for (Path baseFile : patientBaseFiles) {
+			jobs.add(MergeToPdf.createJob(cli, baseFile.toFile(), from));
+		}
+
+		return jobs;
+	}
+
+	private Journal journalFor(File output) throws IOException {
+		File directory = output.getAbsoluteFile().getParentFile();
+
+		synchronized (journals) {
+			Journal journal = journals.get(directory);
+			if (journal == null) {
+				journal = Journal.open(directory);
+				journals.put(directory, journal);
+			}
+			return journal;
+		}
+	}
+}
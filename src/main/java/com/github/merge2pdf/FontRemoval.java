@@ -0,0 +1,247 @@
+package com.github.merge2pdf;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import com.itextpdf.text.pdf.PRIndirectReference;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Removes embedded TrueType fonts which names match given pattern. Only fonts used by given pages are visited: fonts
+ * of page resources, of form XObjects, tiling patterns and annotation appearances they use (recursively), descendant
+ * fonts of composite fonts and fonts used by Type 3 glyphs. Whether the font with given name is removed is decided
+ * once per instance. The code was taken from
+ * <a href="https://itextpdf.com/en/resources/examples/itext-5/unembed-font">Unembed a font</a>.
+ */
+class FontRemoval {
+
+	private static final Log				logger		= LogFactory.getLog(FontRemoval.class);
+
+	private final Pattern					fontNameFilter;
+
+	/**
+	 * Decisions whether the font should be removed by the value of its {@code /BaseFont}.
+	 */
+	private final Map<PdfName, Boolean>		decisions	= new ConcurrentHashMap<>();
+
+	FontRemoval(Pattern fontNameFilter) {
+		this.fontNameFilter = fontNameFilter;
+	}
+
+	/**
+	 * Removes fonts used by given pages of given document.
+	 */
+	void removeFonts(PdfReader reader, List<Integer> pages) {
+		Set<Integer> visited = new HashSet<>();
+
+		for (int page : pages) {
+			PdfDictionary pageDict = reader.getPageN(page);
+
+			// Inherited resources are already put into the page by the reader:
+			visitResources(reader, pageDict.get(PdfName.RESOURCES), visited);
+
+			PdfArray annots = pageDict.getAsArray(PdfName.ANNOTS);
+			if (annots != null) {
+				for (int i = 0; i < annots.size(); i++) {
+					PdfDictionary annot = annots.getAsDict(i);
+					if (annot != null) {
+						visitAppearances(reader, annot.get(PdfName.AP), visited);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the object which is either given object or referenced by it, or {@code null} if it was already visited.
+	 */
+	private static PdfObject visit(PdfObject obj, Set<Integer> visited) {
+		if (obj instanceof PRIndirectReference && !visited.add(((PRIndirectReference) obj).getNumber())) {
+			return null;
+		}
+
+		return PdfReader.getPdfObject(obj);
+	}
+
+	private void visitResources(PdfReader reader, PdfObject obj, Set<Integer> visited) {
+		PdfObject resources = visit(obj, visited);
+		if (resources == null || !resources.isDictionary()) {
+			return;
+		}
+
+		PdfDictionary fonts = ((PdfDictionary) resources).getAsDict(PdfName.FONT);
+		if (fonts != null) {
+			for (PdfName key : fonts.getKeys()) {
+				visitFont(reader, fonts.get(key), visited);
+			}
+		}
+
+		PdfDictionary xObjects = ((PdfDictionary) resources).getAsDict(PdfName.XOBJECT);
+		if (xObjects != null) {
+			for (PdfName key : xObjects.getKeys()) {
+				visitForm(reader, xObjects.get(key), visited);
+			}
+		}
+
+		PdfDictionary patterns = ((PdfDictionary) resources).getAsDict(PdfName.PATTERN);
+		if (patterns != null) {
+			for (PdfName key : patterns.getKeys()) {
+				visitPattern(reader, patterns.get(key), visited);
+			}
+		}
+	}
+
+	/**
+	 * Visits appearance streams of an annotation given by its {@code /AP} entry.
+	 */
+	private void visitAppearances(PdfReader reader, PdfObject obj, Set<Integer> visited) {
+		PdfObject appearances = visit(obj, visited);
+		if (appearances == null || !appearances.isDictionary()) {
+			return;
+		}
+
+		for (PdfName key : ((PdfDictionary) appearances).getKeys()) {
+			PdfObject appearance = ((PdfDictionary) appearances).get(key);
+			PdfObject resolved = PdfReader.getPdfObject(appearance);
+
+			if (resolved != null && resolved.isStream()) {
+				visitForm(reader, appearance, visited);
+			}
+			else if (resolved != null && resolved.isDictionary()) {
+				// Appearances for different states:
+				for (PdfName state : ((PdfDictionary) resolved).getKeys()) {
+					visitForm(reader, ((PdfDictionary) resolved).get(state), visited);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visits resources of given XObject if it is a form. Images are not parsed further.
+	 */
+	private void visitForm(PdfReader reader, PdfObject obj, Set<Integer> visited) {
+		PdfObject xObject = visit(obj, visited);
+		// Forms are streams, which are dictionaries too:
+		if (!(xObject instanceof PdfDictionary)
+		            || !PdfName.FORM.equals(((PdfDictionary) xObject).getAsName(PdfName.SUBTYPE))) {
+			return;
+		}
+
+		visitResources(reader, ((PdfDictionary) xObject).get(PdfName.RESOURCES), visited);
+	}
+
+	/**
+	 * Visits resources of given pattern if it is a tiling pattern. Shading patterns have no resources.
+	 */
+	private void visitPattern(PdfReader reader, PdfObject obj, Set<Integer> visited) {
+		PdfObject pattern = visit(obj, visited);
+		if (!(pattern instanceof PdfDictionary)) {
+			return;
+		}
+
+		PdfNumber patternType = ((PdfDictionary) pattern).getAsNumber(PdfName.PATTERNTYPE);
+		if (patternType == null || patternType.intValue() != 1) {
+			return;
+		}
+
+		visitResources(reader, ((PdfDictionary) pattern).get(PdfName.RESOURCES), visited);
+	}
+
+	private void visitFont(PdfReader reader, PdfObject ref, Set<Integer> visited) {
+		PdfObject obj = visit(ref, visited);
+		if (obj == null || !obj.isDictionary()) {
+			return;
+		}
+
+		PdfDictionary font = (PdfDictionary) obj;
+
+		PdfArray descendantFonts = font.getAsArray(PdfName.DESCENDANTFONTS);
+		if (descendantFonts != null) {
+			for (int i = 0; i < descendantFonts.size(); i++) {
+				visitFont(reader, descendantFonts.getPdfObject(i), visited);
+			}
+		}
+
+		if (PdfName.TYPE3.equals(font.getAsName(PdfName.SUBTYPE))) {
+			visitResources(reader, font.get(PdfName.RESOURCES), visited);
+		}
+
+		unembedTTF(reader, ref, font);
+	}
+
+	/**
+	 * Removes given font if its name matches the pattern.
+	 */
+	private void unembedTTF(PdfReader reader, PdfObject ref, PdfDictionary dict) {
+		PdfName baseFont = dict.getAsName(PdfName.BASEFONT);
+
+		if (baseFont == null) {
+			return;
+		}
+
+		Boolean remove = decisions.get(baseFont);
+
+		if (remove == null) {
+			remove = decide(dict, fontName(baseFont));
+			decisions.put(baseFont, remove);
+		}
+
+		if (!remove) {
+			return;
+		}
+
+		PdfDictionary fontDescriptor = dict.getAsDict(PdfName.FONTDESCRIPTOR);
+
+		if (fontDescriptor == null) {
+			return;
+		}
+
+		// Replace the font name and remove the embedded font data:
+		PdfName fontName = new PdfName(fontName(baseFont));
+		dict.put(PdfName.BASEFONT, fontName);
+		fontDescriptor.put(PdfName.FONTNAME, fontName);
+		fontDescriptor.remove(PdfName.FONTFILE2);
+
+		if (reader instanceof PartialPdfReader) {
+			// Modified objects must not be parsed again:
+			((PartialPdfReader) reader).pin(ref, dict);
+			((PartialPdfReader) reader).pin(dict.get(PdfName.FONTDESCRIPTOR), fontDescriptor);
+		}
+	}
+
+	private boolean decide(PdfDictionary dict, String fontName) {
+		if (dict.getAsDict(PdfName.FONTFILE2) != null) {
+			logger.warn("Font " + fontName + " is not TTF and hence not removed");
+			return false;
+		}
+
+		return fontNameFilter.matcher(fontName).matches();
+	}
+
+	/**
+	 * Returns the name of the font without subset prefix (i.e. {@code ComicSansMS} for {@code ZIGEYT+ComicSansMS}).
+	 */
+	private static String fontName(PdfName baseFont) {
+		// Remove leading "/" from font name:
+		String fontName = PdfName.decodeName(baseFont.toString()).substring(1);
+
+		int pos = fontName.indexOf('+');
+		if (pos > 0) {
+			fontName = fontName.substring(pos + 1);
+		}
+
+		return fontName;
+	}
+}
@@ -0,0 +1,166 @@
+package com.github.merge2pdf;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.itextpdf.text.BadElementException;
+import com.itextpdf.text.Image;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Resamples images which resolution on the page exceeds given DPI down to that DPI. JPEG images are re-encoded as
+ * JPEG, other images losslessly as PNG. Images which cannot be decoded by {@link ImageIO} (i.e. CMYK JPEG or TIFF
+ * without ImageIO plugin) are kept as they are.
+ */
+class ImageDownsampling {
+
+	private static final Log	logger			= LogFactory.getLog(ImageDownsampling.class);
+
+	private static final float	JPEG_QUALITY	= 0.85f;
+
+	private final int			maxDpi;
+
+	ImageDownsampling(int maxDpi) {
+		this.maxDpi = maxDpi;
+	}
+
+	/**
+	 * Returns given image (the image with given index in given file) which has been scaled and positioned on the page,
+	 * or its resampled copy placed the same way if the resolution of the image exceeds the maximum.
+	 */
+	Image downsample(Image image, String file, int index) throws BadElementException, IOException {
+		if (image.isImgTemplate() || image.getPlainWidth() <= 0 || image.getPlainHeight() <= 0) {
+			return image;
+		}
+
+		int width = Math.min(Math.round(image.getWidth()),
+		            Math.max(1, Math.round(image.getPlainWidth() * maxDpi / MergeEngine.PDF_DPI)));
+		int height = Math.min(Math.round(image.getHeight()),
+		            Math.max(1, Math.round(image.getPlainHeight() * maxDpi / MergeEngine.PDF_DPI)));
+
+		if (width == Math.round(image.getWidth()) && height == Math.round(image.getHeight())) {
+			return image;
+		}
+
+		BufferedImage source = read(file, index);
+
+		// Pixels are read again by ImageIO, hence they should match the ones read before:
+		if (source == null || source.getWidth() != Math.round(image.getWidth())
+		            || source.getHeight() != Math.round(image.getHeight())) {
+			logger.debug("Cannot decode image " + index + " of " + file + ", keeping its resolution");
+			return image;
+		}
+
+		BufferedImage scaled = resize(source, width, height);
+
+		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+		if (image.getOriginalType() == Image.ORIGINAL_JPEG && !scaled.getColorModel().hasAlpha()) {
+			writeJpeg(scaled, byteStream);
+		}
+		else {
+			ImageIO.write(scaled, "png", byteStream);
+		}
+
+		Image resampled = Image.getInstance(byteStream.toByteArray());
+		resampled.scaleAbsolute(image.getPlainWidth(), image.getPlainHeight());
+		resampled.setInitialRotation(image.getInitialRotation());
+		resampled.setRotation(image.getImageRotation());
+		resampled.setAbsolutePosition(image.getAbsoluteX(), image.getAbsoluteY());
+
+		logger.debug(String.format("Resampled image %d of %s (%dx%d) -> (%dx%d)", index, file, source.getWidth(),
+		            source.getHeight(), width, height));
+
+		return resampled;
+	}
+
+	/**
+	 * Reads the image with given index from given file or returns {@code null} if the image cannot be decoded.
+	 */
+	private static BufferedImage read(String file, int index) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(new File(file))) {
+			Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+
+			if (readers == null || !readers.hasNext()) {
+				return null;
+			}
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in);
+				return reader.read(index);
+			}
+			finally {
+				reader.dispose();
+			}
+		}
+		catch (IIOException e) {
+			// Unsupported variant of the format:
+			logger.debug("Cannot decode " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Resizes given image to given (smaller) size. Each step at most halves the size, so that bilinear interpolation
+	 * takes all source pixels into account.
+	 */
+	private static BufferedImage resize(BufferedImage source, int width, int height) {
+		int type = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+		            : source.getColorModel().getNumColorComponents() == 1 ? BufferedImage.TYPE_BYTE_GRAY
+		                        : BufferedImage.TYPE_INT_RGB;
+
+		BufferedImage current = source;
+
+		do {
+			int w = Math.max(width, current.getWidth() / 2);
+			int h = Math.max(height, current.getHeight() / 2);
+
+			BufferedImage scaled = new BufferedImage(w, h, type);
+			Graphics2D g2d = scaled.createGraphics();
+			try {
+				g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+				g2d.drawImage(current, 0, 0, w, h, null);
+			}
+			finally {
+				g2d.dispose();
+			}
+
+			current = scaled;
+		}
+		while (current.getWidth() != width || current.getHeight() != height);
+
+		return current;
+	}
+
+	private static void writeJpeg(BufferedImage image, ByteArrayOutputStream byteStream) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(byteStream)) {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(JPEG_QUALITY);
+
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		}
+		finally {
+			writer.dispose();
+		}
+	}
+}
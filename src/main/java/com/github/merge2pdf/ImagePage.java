@@ -0,0 +1,100 @@
+package com.github.merge2pdf;
+
+import java.nio.file.Paths;
+
+import com.itextpdf.text.Image;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.BadPdfFormatException;
+import com.itextpdf.text.pdf.PdfICCBased;
+import com.itextpdf.text.pdf.PdfImage;
+import com.itextpdf.text.pdf.PdfStream;
+
+/**
+ * Image laid out on its own page, ready to be written by {@link MergeCopy#addImagePage(ImagePage)}. Plain images are
+ * encoded (and compressed) to PDF image object when the page is created, so that this work is done by the thread
+ * which converts images and not by the thread which writes the output. JPEG files and the image data of most PNG files
+ * are not read into memory at all: they are copied from the file to the output when the page is written.
+ */
+class ImagePage {
+
+	/**
+	 * Name of the image in page resources. Each image page has its own resources.
+	 */
+	static final String	IMAGE_NAME = "img0";
+
+	final Rectangle		pageSize;
+
+	/**
+	 * File and number of the image, which identify the image among other images of the output.
+	 */
+	final String		source;
+
+	/**
+	 * Transformation matrix which places the image on the page.
+	 */
+	final float[]		matrix;
+
+	/**
+	 * Encoded image or {@code null} if image has to be added by the writer (e.g. has a mask or ICC profile which are
+	 * separate PDF objects).
+	 */
+	final PdfStream		pdfImage;
+
+	/**
+	 * ICC profile of the encoded image or {@code null}.
+	 */
+	final PdfICCBased	iccProfile;
+
+	/**
+	 * Image to be added by the writer or {@code null} if the image is encoded.
+	 */
+	final Image			image;
+
+	/**
+	 * Creates the page for given image (the image with given number in given file) which has been scaled and
+	 * positioned on the page of given size.
+	 */
+	ImagePage(Image image, Rectangle pageSize, String file, int number) throws BadPdfFormatException {
+		this.pageSize = pageSize;
+		this.source = Paths.get(file).toAbsolutePath().normalize() + "[" + number + "]";
+
+		// Same placement as PdfContentByte.addImage(Image):
+		this.matrix = image.matrix();
+		matrix[Image.CX] = image.getAbsoluteX() - matrix[Image.CX];
+		matrix[Image.CY] = image.getAbsoluteY() - matrix[Image.CY];
+
+		if (image instanceof PngStream.HeaderImage) {
+			this.pdfImage = new PngStream((PngStream.HeaderImage) image);
+			this.iccProfile = image.hasICCProfile()
+			            ? new PdfICCBased(image.getICCProfile(), image.getCompressionLevel())
+			            : null;
+			this.image = null;
+		}
+		else if (image.getImageMask() == null && JpegStream.isSupported(image)) {
+			this.pdfImage = new JpegStream(image);
+			this.iccProfile = image.hasICCProfile()
+			            ? new PdfICCBased(image.getICCProfile(), image.getCompressionLevel())
+			            : null;
+			this.image = null;
+		}
+		else if (image.getImageMask() == null && !image.hasICCProfile() && !image.isImgTemplate()
+		            && image.getOriginalType() != Image.ORIGINAL_JBIG2) {
+			this.pdfImage = new PdfImage(image, IMAGE_NAME, null);
+			this.iccProfile = null;
+			this.image = null;
+		}
+		else {
+			this.pdfImage = null;
+			this.iccProfile = null;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * Returns {@code true} if given image can be written directly to the output. Templates (i.e. WMF) are drawn by
+	 * the document and are not supported.
+	 */
+	static boolean isSupported(Image image) {
+		return !image.isImgTemplate();
+	}
+}
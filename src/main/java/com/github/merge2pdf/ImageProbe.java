@@ -0,0 +1,239 @@
+package com.github.merge2pdf;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.itextpdf.text.BadElementException;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.ImgRaw;
+import com.itextpdf.text.io.RandomAccessSource;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+import com.itextpdf.text.pdf.codec.TIFFConstants;
+import com.itextpdf.text.pdf.codec.TIFFDirectory;
+import com.itextpdf.text.pdf.codec.TIFFField;
+
+/**
+ * Dimensions, resolution and orientation of an image read from the header of the image file without decoding any
+ * pixels. PNG and TIFF headers are parsed here the same way as iText does, other formats are read by
+ * {@link Image#getInstance(String)}, which reads only the header of JPEG and JPEG 2000 files but decodes GIF and BMP.
+ */
+final class ImageProbe {
+
+	private static final byte[]	PNG_SIGNATURE	= { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	final int					width;
+	final int					height;
+	final int					dpiX;
+	final int					dpiY;
+
+	/**
+	 * Rotation (in radians) given by the orientation of TIFF image.
+	 */
+	final float					rotation;
+
+	/**
+	 * Image read by iText if the header is not parsed here or {@code null}. It is reused, so that the file is not
+	 * decoded twice.
+	 */
+	final Image					image;
+
+	private ImageProbe(int width, int height, int dpiX, int dpiY, float rotation, Image image) {
+		this.width = width;
+		this.height = height;
+		this.dpiX = dpiX;
+		this.dpiY = dpiY;
+		this.rotation = rotation;
+		this.image = image;
+	}
+
+	/**
+	 * Probes the images of given file (all pages in case of TIFF).
+	 */
+	static List<ImageProbe> probe(String file) throws BadElementException, IOException {
+		if (isTiff(file)) {
+			try (TiffSource tiff = new TiffSource(file)) {
+				List<ImageProbe> probes = new ArrayList<>();
+				int pages = TIFFDirectory.getNumDirectories(tiff.rafa);
+				for (int p = 0; p < pages; p++) {
+					probes.add(probeTiff(new TIFFDirectory(tiff.rafa, p)));
+				}
+				return probes;
+			}
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			byte[] signature = new byte[PNG_SIGNATURE.length];
+			if (in.read(signature) == signature.length && Arrays.equals(signature, PNG_SIGNATURE)) {
+				ImageProbe probe = probePng(in);
+				if (probe != null) {
+					return Collections.singletonList(probe);
+				}
+			}
+		}
+
+		// Other formats and malformed PNG files (which iText reports) are read by iText:
+		Image image = Image.getInstance(file);
+		return Collections.singletonList(new ImageProbe(Math.round(image.getWidth()), Math.round(image.getHeight()),
+		            image.getDpiX(), image.getDpiY(), image.getInitialRotation(), image));
+	}
+
+	/**
+	 * Returns an image without pixel data which has the size, resolution and orientation of the probed image. It can
+	 * be only scaled and placed, not written.
+	 */
+	Image placeholder() throws BadElementException {
+		Image image = new ImgRaw(width, height, 1, 8, null);
+		image.setDpi(dpiX, dpiY);
+		image.setInitialRotation(rotation);
+		return image;
+	}
+
+	private static boolean isTiff(String file) {
+		return file.toLowerCase().endsWith(".tiff") || file.toLowerCase().endsWith(".tif");
+	}
+
+	/**
+	 * Reads {@code IHDR} and {@code pHYs} chunks which precede image data. Returns {@code null} if the chunks are
+	 * malformed or truncated, like {@link PngStream#read(String)} does.
+	 */
+	private static ImageProbe probePng(DataInputStream in) throws IOException {
+		int width = 0;
+		int height = 0;
+		int dpiX = 0;
+		int dpiY = 0;
+
+		try {
+			while (true) {
+				int length = in.readInt();
+				byte[] type = new byte[4];
+				in.readFully(type);
+				String marker = new String(type, StandardCharsets.US_ASCII);
+
+				if (length < 0 || "IHDR".equals(marker) && length < 13 || "pHYs".equals(marker) && length < 9) {
+					return null;
+				}
+
+				if ("IDAT".equals(marker) || "IEND".equals(marker)) {
+					break;
+				}
+
+				if ("IHDR".equals(marker)) {
+					width = in.readInt();
+					height = in.readInt();
+					length -= 8;
+				}
+				else if ("pHYs".equals(marker)) {
+					int dx = in.readInt();
+					int dy = in.readInt();
+					int unit = in.read();
+					length -= 9;
+
+					// Pixels per meter:
+					if (unit == 1) {
+						dpiX = (int) (dx * 0.0254f + 0.5f);
+						dpiY = (int) (dy * 0.0254f + 0.5f);
+					}
+				}
+
+				// Skip the rest of the chunk and its CRC:
+				skipFully(in, length + 4L);
+			}
+		}
+		catch (EOFException e) {
+			return null;
+		}
+
+		return new ImageProbe(width, height, dpiX, dpiY, 0, null);
+	}
+
+	private static void skipFully(DataInputStream in, long n) throws IOException {
+		for (long remaining = n; remaining > 0;) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				in.readByte();
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	/**
+	 * Reads the tags of TIFF image directory like {@link com.itextpdf.text.pdf.codec.TiffImage} does.
+	 */
+	private static ImageProbe probeTiff(TIFFDirectory dir) {
+		float rotation = 0;
+		if (dir.isTagPresent(TIFFConstants.TIFFTAG_ORIENTATION)) {
+			int rot = (int) dir.getFieldAsLong(TIFFConstants.TIFFTAG_ORIENTATION);
+			if (rot == TIFFConstants.ORIENTATION_BOTRIGHT || rot == TIFFConstants.ORIENTATION_BOTLEFT) {
+				rotation = (float) Math.PI;
+			}
+			else if (rot == TIFFConstants.ORIENTATION_LEFTTOP || rot == TIFFConstants.ORIENTATION_LEFTBOT) {
+				rotation = (float) (Math.PI / 2.0);
+			}
+			else if (rot == TIFFConstants.ORIENTATION_RIGHTTOP || rot == TIFFConstants.ORIENTATION_RIGHTBOT) {
+				rotation = -(float) (Math.PI / 2.0);
+			}
+		}
+
+		int resolutionUnit = TIFFConstants.RESUNIT_INCH;
+		if (dir.isTagPresent(TIFFConstants.TIFFTAG_RESOLUTIONUNIT)) {
+			resolutionUnit = (int) dir.getFieldAsLong(TIFFConstants.TIFFTAG_RESOLUTIONUNIT);
+		}
+
+		int dpiX = 0;
+		int dpiY = 0;
+		if (resolutionUnit != TIFFConstants.RESUNIT_NONE) {
+			dpiX = tiffDpi(dir.getField(TIFFConstants.TIFFTAG_XRESOLUTION), resolutionUnit);
+			dpiY = tiffDpi(dir.getField(TIFFConstants.TIFFTAG_YRESOLUTION), resolutionUnit);
+		}
+
+		return new ImageProbe((int) dir.getFieldAsLong(TIFFConstants.TIFFTAG_IMAGEWIDTH),
+		            (int) dir.getFieldAsLong(TIFFConstants.TIFFTAG_IMAGELENGTH), dpiX, dpiY, rotation, null);
+	}
+
+	private static int tiffDpi(TIFFField field, int resolutionUnit) {
+		if (field == null) {
+			return 0;
+		}
+
+		long[] res = field.getAsRational(0);
+		float frac = (float) res[0] / (float) res[1];
+
+		switch (resolutionUnit) {
+		case TIFFConstants.RESUNIT_INCH:
+			return (int) (frac + 0.5);
+		case TIFFConstants.RESUNIT_CENTIMETER:
+			return (int) (frac * 2.54 + 0.5);
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * TIFF file opened for reading its directories.
+	 */
+	private static final class TiffSource implements AutoCloseable {
+		final RandomAccessSource		source;
+		final RandomAccessFileOrArray	rafa;
+
+		TiffSource(String file) throws IOException {
+			this.source = new RandomAccessSourceFactory().createBestSource(new RandomAccessFile(file, "r"));
+			this.rafa = new RandomAccessFileOrArray(source);
+		}
+
+		@Override
+		public void close() throws IOException {
+			source.close();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.github.merge2pdf;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only log of merged output files kept in the output directory. Each line records the signature of the
+ * inputs the output was merged from, the size of the output and its file name. When the same output is merged again
+ * from inputs with the same signature, the merge can be skipped. Last line for given file name wins.
+ */
+class Journal implements Closeable {
+
+	static final String			FILE_NAME = ".merge2pdf.journal";
+
+	private static final Log	logger	  = LogFactory.getLog(Journal.class);
+
+	private static final class Entry {
+		final String	signature;
+		final long		outputSize;
+
+		Entry(String signature, long outputSize) {
+			this.signature = signature;
+			this.outputSize = outputSize;
+		}
+	}
+
+	private final File				 file;
+
+	private final Map<String, Entry> entries = new HashMap<>();
+
+	private Writer					 writer;
+
+	private Journal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads the journal from given directory. Missing journal is treated as empty one.
+	 */
+	static Journal open(File directory) throws IOException {
+		Journal journal = new Journal(new File(directory, FILE_NAME));
+
+		if (journal.file.isFile()) {
+			try (BufferedReader reader = Files.newBufferedReader(journal.file.toPath(), StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] parts = line.split("\t", 3);
+					if (parts.length != 3) {
+						// Last line could be incomplete if the process was killed:
+						logger.warn("Ignoring malformed line in " + journal.file + ": " + line);
+						continue;
+					}
+					try {
+						journal.entries.put(parts[2], new Entry(parts[0], Long.parseLong(parts[1])));
+					}
+					catch (NumberFormatException e) {
+						logger.warn("Ignoring malformed line in " + journal.file + ": " + line);
+					}
+				}
+			}
+		}
+
+		return journal;
+	}
+
+	/**
+	 * Returns {@code true} if given output exists, has the recorded size and was merged from inputs with given
+	 * signature.
+	 */
+	synchronized boolean isUpToDate(File output, String signature) {
+		Entry entry = entries.get(output.getName());
+
+		return entry != null && entry.signature.equals(signature) && output.isFile()
+		            && output.length() == entry.outputSize;
+	}
+
+	/**
+	 * Records that given output was successfully merged from inputs with given signature. The line is flushed
+	 * immediately so that it survives the crash of the batch.
+	 */
+	synchronized void record(File output, String signature) throws IOException {
+		long outputSize = output.length();
+
+		if (writer == null) {
+			writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+		}
+
+		writer.write(signature + "\t" + outputSize + "\t" + output.getName() + "\n");
+		writer.flush();
+
+		entries.put(output.getName(), new Entry(signature, outputSize));
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * Calculates the signature of given input files from their paths, sizes and modification times together with
+	 * given settings that affect the output.
+	 */
+	static String signature(List<String> inputs, String settings) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		digest.update(settings.getBytes(StandardCharsets.UTF_8));
+
+		for (String input : inputs) {
+			File file = new File(PageSelection.fileOf(input));
+			digest.update(("\n" + input + "\t" + file.length() + "\t" + file.lastModified())
+			            .getBytes(StandardCharsets.UTF_8));
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
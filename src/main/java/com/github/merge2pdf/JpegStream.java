@@ -0,0 +1,107 @@
+package com.github.merge2pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.itextpdf.text.Image;
+import com.itextpdf.text.pdf.PdfBoolean;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfLiteral;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.PdfWriter;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Image XObject of JPEG file which content is copied from the file when the stream is written, so that the image data
+ * is never held in memory. The dictionary is the same as created by {@link com.itextpdf.text.pdf.PdfImage} from the
+ * header of the file, which is all {@link Image#getInstance(String)} reads from JPEG file.
+ */
+class JpegStream extends PdfStream {
+
+	private static final long	serialVersionUID	= 1L;
+
+	private final File			file;
+
+	/**
+	 * Creates the stream of given image which {@link #isSupported(Image) is supported}.
+	 */
+	JpegStream(Image image) {
+		this.file = fileOf(image);
+
+		put(PdfName.TYPE, PdfName.XOBJECT);
+		put(PdfName.SUBTYPE, PdfName.IMAGE);
+		put(PdfName.WIDTH, new PdfNumber(image.getWidth()));
+		put(PdfName.HEIGHT, new PdfNumber(image.getHeight()));
+		if (image.isInterpolation()) {
+			put(PdfName.INTERPOLATE, PdfBoolean.PDFTRUE);
+		}
+		put(PdfName.FILTER, PdfName.DCTDECODE);
+		if (image.getColorTransform() == 0) {
+			PdfDictionary decodeParms = new PdfDictionary();
+			decodeParms.put(PdfName.COLORTRANSFORM, new PdfNumber(0));
+			put(PdfName.DECODEPARMS, decodeParms);
+		}
+		switch (image.getColorspace()) {
+		case 1:
+			put(PdfName.COLORSPACE, PdfName.DEVICEGRAY);
+			break;
+		case 3:
+			put(PdfName.COLORSPACE, PdfName.DEVICERGB);
+			break;
+		default:
+			put(PdfName.COLORSPACE, PdfName.DEVICECMYK);
+			if (image.isInverted()) {
+				put(PdfName.DECODE, new PdfLiteral("[1 0 1 0 1 0 1 0]"));
+			}
+		}
+		put(PdfName.BITSPERCOMPONENT, new PdfNumber(8));
+	}
+
+	/**
+	 * Returns {@code true} if given image is JPEG which has been read from local file (not from memory).
+	 */
+	static boolean isSupported(Image image) {
+		return image.type() == Image.JPEG && image.getRawData() == null && fileOf(image) != null;
+	}
+
+	private static File fileOf(Image image) {
+		if (image.getUrl() == null || !"file".equals(image.getUrl().getProtocol())) {
+			return null;
+		}
+
+		try {
+			return new File(image.getUrl().toURI());
+		}
+		catch (URISyntaxException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void toPdf(PdfWriter writer, OutputStream os) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+
+			// The length is known upfront, hence it is written directly and not as a separate object:
+			put(PdfName.LENGTH, new PdfNumber(size));
+			inputStream = new BoundedInputStream(Channels.newInputStream(channel), size);
+
+			super.toPdf(writer, os);
+
+			if (rawLength != size) {
+				throw new IOException("File " + file + " was truncated while it was written to the output");
+			}
+		}
+		finally {
+			inputStream = null;
+		}
+	}
+}
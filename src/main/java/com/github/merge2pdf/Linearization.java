@@ -0,0 +1,791 @@
+package com.github.merge2pdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+import com.itextpdf.text.pdf.PRStream;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNull;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Writes PDF file in linearized order (ISO 32000-1, Annex F), so that a viewer can display the first page before the
+ * whole file is downloaded: the linearization dictionary and the document catalog are followed by the hint stream and
+ * the first page with all objects it uses, then by other pages each with objects used only by that page, objects
+ * shared by several pages and the rest. Objects are renumbered and written uncompressed with cross-reference tables.
+ * The source is read by {@link PartialPdfReader} and stream data is copied from the file, so that neither of them is
+ * held in memory.
+ */
+final class Linearization implements Closeable {
+
+	/**
+	 * Parsed objects kept by the reader. Each pass visits objects in the same order, hence a larger cache does not
+	 * save much.
+	 */
+	private static final int		CACHED_OBJECTS		= 1000;
+
+	private static final int		BUFFER_SIZE			= 1 << 16;
+
+	/**
+	 * Length of each cross-reference table entry.
+	 */
+	private static final int		XREF_ENTRY_LENGTH	= 20;
+
+	/**
+	 * Page attributes which are written to each page, as pages of linearized file should not inherit them.
+	 */
+	private static final PdfName[]	INHERITED			= { PdfName.RESOURCES, PdfName.MEDIABOX, PdfName.CROPBOX,
+	            PdfName.ROTATE };
+
+	/**
+	 * Entries of the catalog which are needed to open the document, their objects are written with the catalog.
+	 */
+	private static final PdfName[]	OPEN_DOCUMENT		= { PdfName.VIEWERPREFERENCES, PdfName.OPENACTION,
+	            PdfName.ACROFORM };
+
+	private final String			file;
+
+	private final PdfReader			reader;
+
+	private final FileChannel		channel;
+
+	private final byte[]			buffer				= new byte[BUFFER_SIZE];
+
+	private final boolean[]			pages;
+
+	private final boolean[]			pageTreeNodes;
+
+	/**
+	 * New numbers of objects by their numbers in the source, {@code 0} for objects which are not written.
+	 */
+	private final int[]				newNumbers;
+
+	private Linearization(String file) throws IOException {
+		this.file = file;
+		this.reader = new PartialPdfReader(file, CACHED_OBJECTS);
+		this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		this.pages = new boolean[reader.getXrefSize()];
+		this.pageTreeNodes = new boolean[reader.getXrefSize()];
+		this.newNumbers = new int[reader.getXrefSize()];
+	}
+
+	/**
+	 * Writes given PDF file to given stream in linearized order. The stream is not closed.
+	 */
+	static void linearize(String file, OutputStream os) throws IOException {
+		try (Linearization linearization = new Linearization(file)) {
+			linearization.write(os);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			reader.close();
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	private void write(OutputStream os) throws IOException {
+		int numberOfPages = reader.getNumberOfPages();
+		if (numberOfPages == 0) {
+			throw new IOException("Document " + file + " has no pages");
+		}
+
+		int[] pageNumbers = new int[numberOfPages];
+		for (int i = 0; i < numberOfPages; i++) {
+			pageNumbers[i] = reader.getPageOrigRef(i + 1).getNumber();
+			pages[pageNumbers[i]] = true;
+		}
+
+		PdfDictionary trailer = reader.getTrailer();
+		int catalog = ((PdfIndirectReference) trailer.get(PdfName.ROOT)).getNumber();
+		markPageTreeNodes(reader.getCatalog().get(PdfName.PAGES));
+
+		// Objects used by each page, the page object first. Other pages and the page tree are not entered:
+		List<int[]> used = new ArrayList<>();
+		int[] users = new int[newNumbers.length];
+		int[] lastUser = new int[newNumbers.length];
+		Arrays.fill(lastUser, -1);
+
+		for (int i = 0; i < numberOfPages; i++) {
+			int page = pageNumbers[i];
+			int[] objects = toArray(
+			            closure(Arrays.asList(page), true, n -> n == page || !pages[n] && !pageTreeNodes[n]));
+			for (int n : objects) {
+				if (lastUser[n] != i) {
+					lastUser[n] = i;
+					users[n]++;
+				}
+			}
+			used.add(objects);
+		}
+
+		boolean[] placed = new boolean[newNumbers.length];
+
+		// Catalog and objects needed to open the document which are not used by pages:
+		List<Integer> openDocument = new ArrayList<>();
+		for (PdfName key : OPEN_DOCUMENT) {
+			references(reader.getCatalog().get(key), false, openDocument);
+		}
+		List<Integer> part4 = new ArrayList<>();
+		part4.add(catalog);
+		part4.addAll(closure(openDocument, true,
+		            n -> n != catalog && !pages[n] && !pageTreeNodes[n] && users[n] == 0));
+		place(part4, placed);
+
+		// First page section:
+		List<Integer> part6 = new ArrayList<>();
+		for (int n : used.get(0)) {
+			if (!placed[n]) {
+				part6.add(n);
+			}
+		}
+		place(part6, placed);
+
+		// Other pages, each with the objects used only by that page:
+		List<Integer> part7 = new ArrayList<>();
+		int[] pageObjects = new int[numberOfPages];
+		pageObjects[0] = part6.size();
+		for (int i = 1; i < numberOfPages; i++) {
+			int start = part7.size();
+			for (int n : used.get(i)) {
+				if (users[n] == 1 && !placed[n]) {
+					part7.add(n);
+				}
+			}
+			place(part7.subList(start, part7.size()), placed);
+			pageObjects[i] = part7.size() - start;
+		}
+
+		// Objects shared by other pages:
+		List<Integer> part8 = new ArrayList<>();
+		for (int i = 1; i < numberOfPages; i++) {
+			for (int n : used.get(i)) {
+				if (!placed[n]) {
+					part8.add(n);
+					placed[n] = true;
+				}
+			}
+		}
+
+		// All other objects reachable from the trailer (i.e. page tree and document information):
+		List<Integer> roots = new ArrayList<>();
+		references(trailer.get(PdfName.ROOT), false, roots);
+		references(trailer.get(PdfName.INFO), false, roots);
+		List<Integer> part9 = new ArrayList<>();
+		for (int n : closure(roots, false, n -> true)) {
+			if (!placed[n]) {
+				part9.add(n);
+			}
+		}
+
+		// Objects of the main cross-reference table are numbered first, objects of the first page section follow:
+		List<Integer> main = new ArrayList<>(part7);
+		main.addAll(part8);
+		main.addAll(part9);
+		int number = 1;
+		for (int n : main) {
+			newNumbers[n] = number++;
+		}
+		int mainSize = number;
+		int linearizationNumber = number++;
+		for (int n : part4) {
+			newNumbers[n] = number++;
+		}
+		int hintNumber = number++;
+		for (int n : part6) {
+			newNumbers[n] = number++;
+		}
+		int size = number;
+
+		// Lengths of written objects, so that the offsets are known before anything is written:
+		long[] part4Lengths = measure(part4);
+		List<Integer> body = new ArrayList<>(part6);
+		body.addAll(main);
+		long[] bodyLengths = measure(body);
+		long[] bodyOffsets = new long[body.size() + 1];
+		for (int i = 0; i < body.size(); i++) {
+			bodyOffsets[i + 1] = bodyOffsets[i] + bodyLengths[i];
+		}
+
+		// Shared object hint table lists objects of the first page section followed by the ones shared by other pages:
+		int part8Start = part6.size() + part7.size();
+		int[] sharedIndexes = new int[newNumbers.length];
+		Arrays.fill(sharedIndexes, -1);
+		for (int i = 0; i < part6.size(); i++) {
+			sharedIndexes[part6.get(i)] = i;
+		}
+		for (int i = 0; i < part8.size(); i++) {
+			sharedIndexes[part8.get(i)] = part6.size() + i;
+		}
+
+		// Shared objects used by each page, the first page uses only objects of its own section:
+		List<int[]> shared = new ArrayList<>();
+		shared.add(new int[0]);
+		for (int i = 1; i < numberOfPages; i++) {
+			List<Integer> indexes = new ArrayList<>();
+			for (int n : used.get(i)) {
+				if (users[n] > 1 && sharedIndexes[n] >= 0) {
+					indexes.add(sharedIndexes[n]);
+				}
+			}
+			shared.add(toArray(indexes));
+		}
+
+		byte[] header = ascii("%PDF-1." + reader.getPdfVersion() + "\n%\u00e2\u00e3\u00cf\u00d3\n");
+		int firstSize = size - linearizationNumber;
+		long firstXrefLength = ascii("xref\n" + linearizationNumber + " " + firstSize + "\n").length
+		            + (long) XREF_ENTRY_LENGTH * firstSize;
+		String mainXref = "xref\n0 " + mainSize;
+		long mainXrefLength = ascii(mainXref + "\n").length + (long) XREF_ENTRY_LENGTH * mainSize;
+		long part4Length = sum(part4Lengths, 0, part4.size());
+
+		// The linearization dictionary and the first trailer contain offsets which depend on their own lengths:
+		byte[] linearizationDict = new byte[0];
+		byte[] firstTrailer = new byte[0];
+		byte[] hintStream;
+		byte[] mainTrailer;
+		long hintOffset;
+		long bodyOffset;
+		long mainXrefOffset;
+
+		while (true) {
+			hintOffset = header.length + linearizationDict.length + firstXrefLength + firstTrailer.length
+			            + part4Length;
+
+			// Offsets in the hint tables are computed as if the hint stream was not present:
+			byte[] pageOffsetHints = pageOffsetHints(pageObjects, shared, bodyOffsets, hintOffset,
+			            part6.size() + part8.size());
+			byte[] sharedObjectHints = sharedObjectHints(bodyLengths, bodyOffsets, hintOffset, part6.size(),
+			            part8Start, part8.size());
+			hintStream = hintStream(hintNumber, pageOffsetHints, sharedObjectHints);
+
+			bodyOffset = hintOffset + hintStream.length;
+			mainXrefOffset = bodyOffset + bodyOffsets[body.size()];
+			mainTrailer = ascii("trailer\n<</Size " + mainSize + ">>\nstartxref\n"
+			            + (header.length + linearizationDict.length) + "\n%%EOF\n");
+			long length = mainXrefOffset + mainXrefLength + mainTrailer.length;
+
+			byte[] newLinearizationDict = ascii(linearizationNumber + " 0 obj\n<</Linearized 1/L " + length
+			            + "/H [" + hintOffset + " " + hintStream.length + "]/O " + newNumbers[pageNumbers[0]]
+			            + "/E " + (bodyOffset + bodyOffsets[part6.size()]) + "/N " + numberOfPages
+			            + "/T " + (mainXrefOffset + mainXref.length()) + ">>\nendobj\n");
+			byte[] newFirstTrailer = firstTrailer(trailer, size, mainXrefOffset);
+
+			boolean stable = newLinearizationDict.length == linearizationDict.length
+			            && newFirstTrailer.length == firstTrailer.length;
+			linearizationDict = newLinearizationDict;
+			firstTrailer = newFirstTrailer;
+
+			if (stable) {
+				break;
+			}
+		}
+
+		CountingOutputStream out = new CountingOutputStream(os);
+		out.write(header);
+		out.write(linearizationDict);
+
+		// First page cross-reference table:
+		long[] firstOffsets = new long[firstSize];
+		firstOffsets[0] = header.length;
+		long offset = hintOffset - part4Length;
+		for (int i = 0; i < part4.size(); i++) {
+			firstOffsets[1 + i] = offset;
+			offset += part4Lengths[i];
+		}
+		firstOffsets[1 + part4.size()] = hintOffset;
+		for (int i = 0; i < part6.size(); i++) {
+			firstOffsets[2 + part4.size() + i] = bodyOffset + bodyOffsets[i];
+		}
+		write(out, "xref\n" + linearizationNumber + " " + firstSize + "\n");
+		for (long entry : firstOffsets) {
+			write(out, xrefEntry(entry));
+		}
+		out.write(firstTrailer);
+
+		for (int i = 0; i < part4.size(); i++) {
+			checkOffset(out, firstOffsets[1 + i]);
+			writeObject(part4.get(i), out, true);
+		}
+
+		checkOffset(out, hintOffset);
+		out.write(hintStream);
+
+		for (int i = 0; i < body.size(); i++) {
+			checkOffset(out, bodyOffset + bodyOffsets[i]);
+			writeObject(body.get(i), out, true);
+		}
+
+		// Main cross-reference table:
+		checkOffset(out, mainXrefOffset);
+		write(out, mainXref + "\n");
+		write(out, "0000000000 65535 f \n");
+		for (int i = 0; i < main.size(); i++) {
+			write(out, xrefEntry(bodyOffset + bodyOffsets[part6.size() + i]));
+		}
+		out.write(mainTrailer);
+	}
+
+	/**
+	 * Marks the nodes of the page tree with given root, which are not pages.
+	 */
+	private void markPageTreeNodes(PdfObject root) {
+		Deque<Integer> queue = new ArrayDeque<>();
+		references(root, false, queue);
+
+		while (!queue.isEmpty()) {
+			int n = queue.poll();
+			if (n >= pages.length || pages[n] || pageTreeNodes[n]) {
+				continue;
+			}
+
+			PdfObject node = reader.getPdfObject(n);
+			if (node != null && node.isDictionary()) {
+				pageTreeNodes[n] = true;
+				references(((PdfDictionary) node).get(PdfName.KIDS), false, queue);
+			}
+		}
+	}
+
+	/**
+	 * Returns the numbers of given objects and of objects they use (directly or indirectly) in breadth-first order.
+	 * Objects rejected by given filter are neither returned nor visited.
+	 *
+	 * @param pageUse whether {@code /Parent} entries are not followed, so that the objects are the ones used by a page
+	 */
+	private List<Integer> closure(List<Integer> start, boolean pageUse, IntPredicate filter) {
+		List<Integer> objects = new ArrayList<>();
+		Set<Integer> visited = new HashSet<>();
+		Deque<Integer> queue = new ArrayDeque<>(start);
+
+		while (!queue.isEmpty()) {
+			int n = queue.poll();
+			if (n >= newNumbers.length || !visited.add(n) || !filter.test(n)) {
+				continue;
+			}
+
+			PdfObject obj = object(n);
+			if (obj != null) {
+				objects.add(n);
+				references(obj, pageUse, queue);
+			}
+		}
+
+		return objects;
+	}
+
+	/**
+	 * Adds the numbers of objects referenced by given (direct) object to given collection.
+	 */
+	private static void references(PdfObject obj, boolean skipParent, Collection<Integer> numbers) {
+		if (obj == null) {
+			return;
+		}
+
+		if (obj.isIndirect()) {
+			numbers.add(((PdfIndirectReference) obj).getNumber());
+		}
+		else if (obj.isDictionary() || obj.isStream()) {
+			PdfDictionary dict = (PdfDictionary) obj;
+			for (PdfName key : dict.getKeys()) {
+				// The length of written stream is direct:
+				if (skipParent && PdfName.PARENT.equals(key) || obj.isStream() && PdfName.LENGTH.equals(key)) {
+					continue;
+				}
+				references(dict.get(key), skipParent, numbers);
+			}
+		}
+		else if (obj.isArray()) {
+			for (PdfObject item : (PdfArray) obj) {
+				references(item, skipParent, numbers);
+			}
+		}
+	}
+
+	/**
+	 * Returns the object with given number, pages with inherited attributes.
+	 */
+	private PdfObject object(int n) {
+		PdfObject obj = reader.getPdfObject(n);
+
+		if (!pages[n] || obj == null || !obj.isDictionary()) {
+			return obj;
+		}
+
+		PdfDictionary page = new PdfDictionary();
+		page.putAll((PdfDictionary) obj);
+
+		for (PdfName key : INHERITED) {
+			PdfDictionary node = page.getAsDict(PdfName.PARENT);
+			// The depth is limited in case of cycles:
+			for (int depth = 0; page.get(key) == null && node != null && depth < newNumbers.length; depth++) {
+				if (node.get(key) != null) {
+					page.put(key, node.get(key));
+				}
+				node = node.getAsDict(PdfName.PARENT);
+			}
+		}
+
+		return page;
+	}
+
+	private long[] measure(List<Integer> objects) throws IOException {
+		long[] lengths = new long[objects.size()];
+
+		for (int i = 0; i < objects.size(); i++) {
+			CountingOutputStream counter = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+			long dataLength = writeObject(objects.get(i), counter, false);
+			lengths[i] = counter.getByteCount() + dataLength;
+		}
+
+		return lengths;
+	}
+
+	/**
+	 * Writes the object with given number (in the source) under its new number.
+	 *
+	 * @param data whether the data of stream is written
+	 * @return the length of stream data or {@code 0}
+	 */
+	private long writeObject(int n, OutputStream os, boolean data) throws IOException {
+		PdfObject obj = object(n);
+		long length = 0;
+
+		write(os, newNumbers[n] + " 0 obj\n");
+
+		if (obj.isStream()) {
+			PRStream stream = (PRStream) obj;
+			length = stream.getLength();
+
+			write(os, "<<");
+			for (PdfName key : stream.getKeys()) {
+				if (!PdfName.LENGTH.equals(key)) {
+					key.toPdf(null, os);
+					write(os, " ");
+					writeValue(stream.get(key), os);
+				}
+			}
+			write(os, "/Length " + length + ">>\nstream\n");
+
+			if (data) {
+				copy(stream.getOffset(), length, os);
+			}
+
+			write(os, "\nendstream");
+		}
+		else {
+			writeValue(obj, os);
+		}
+
+		write(os, "\nendobj\n");
+
+		return length;
+	}
+
+	/**
+	 * Writes given direct object with references renumbered. References to objects which are not written are
+	 * replaced by {@code null}.
+	 */
+	private void writeValue(PdfObject obj, OutputStream os) throws IOException {
+		if (obj == null) {
+			obj = PdfNull.PDFNULL;
+		}
+
+		switch (obj.type()) {
+		case PdfObject.INDIRECT:
+			int n = ((PdfIndirectReference) obj).getNumber();
+			if (n < newNumbers.length && newNumbers[n] != 0) {
+				write(os, newNumbers[n] + " 0 R");
+			}
+			else {
+				PdfNull.PDFNULL.toPdf(null, os);
+			}
+			break;
+		case PdfObject.DICTIONARY:
+			write(os, "<<");
+			for (PdfName key : ((PdfDictionary) obj).getKeys()) {
+				key.toPdf(null, os);
+				write(os, " ");
+				writeValue(((PdfDictionary) obj).get(key), os);
+			}
+			write(os, ">>");
+			break;
+		case PdfObject.ARRAY:
+			write(os, "[");
+			for (int i = 0; i < ((PdfArray) obj).size(); i++) {
+				if (i > 0) {
+					write(os, " ");
+				}
+				writeValue(((PdfArray) obj).getPdfObject(i), os);
+			}
+			write(os, "]");
+			break;
+		default:
+			obj.toPdf(null, os);
+		}
+	}
+
+	/**
+	 * Copies given range of the source file.
+	 */
+	private void copy(long position, long length, OutputStream os) throws IOException {
+		for (long remaining = length; remaining > 0;) {
+			int n = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, remaining)), position);
+			if (n < 0) {
+				throw new IOException("File " + file + " was truncated while it was linearized");
+			}
+
+			os.write(buffer, 0, n);
+			position += n;
+			remaining -= n;
+		}
+	}
+
+	private byte[] firstTrailer(PdfDictionary trailer, int size, long mainXrefOffset) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		write(os, "trailer\n<</Size " + size + "/Root ");
+		writeValue(trailer.get(PdfName.ROOT), os);
+		if (trailer.get(PdfName.INFO) != null) {
+			write(os, "/Info ");
+			writeValue(trailer.get(PdfName.INFO), os);
+		}
+		if (trailer.get(PdfName.ID) != null) {
+			write(os, "/ID ");
+			writeValue(trailer.get(PdfName.ID), os);
+		}
+		write(os, "/Prev " + mainXrefOffset + ">>\nstartxref\n0\n%%EOF\n");
+		return os.toByteArray();
+	}
+
+	/**
+	 * Returns the page offset hint table. Content stream offsets and lengths are not hinted: each page is considered
+	 * to be its content stream, and shared objects have no position within the page.
+	 *
+	 * @param pageObjects number of objects of each page, all objects of the first page section for the first page
+	 * @param shared indexes of shared objects used by each page in the shared object hint table
+	 * @param bodyOffset the offset of the first page section as if the hint stream was not present
+	 */
+	private static byte[] pageOffsetHints(int[] pageObjects, List<int[]> shared, long[] bodyOffsets, long bodyOffset,
+	            int totalShared) {
+		int numberOfPages = pageObjects.length;
+		long[] pageLengths = new long[numberOfPages];
+		int first = 0;
+		for (int i = 0; i < numberOfPages; i++) {
+			pageLengths[i] = bodyOffsets[first + pageObjects[i]] - bodyOffsets[first];
+			first += pageObjects[i];
+		}
+
+		int minObjects = Arrays.stream(pageObjects).min().getAsInt();
+		int objectsBits = bitsOf(Arrays.stream(pageObjects).max().getAsInt() - minObjects);
+		long minLength = Arrays.stream(pageLengths).min().getAsLong();
+		int lengthBits = bitsOf(Arrays.stream(pageLengths).max().getAsLong() - minLength);
+		int sharedBits = bitsOf(shared.stream().mapToInt(s -> s.length).max().getAsInt());
+		int identifierBits = bitsOf(totalShared);
+
+		BitWriter bits = new BitWriter();
+		bits.write(minObjects, 32);
+		bits.write(bodyOffset, 32);
+		bits.write(objectsBits, 16);
+		bits.write(minLength, 32);
+		bits.write(lengthBits, 16);
+		// Content stream offset:
+		bits.write(0, 32);
+		bits.write(0, 16);
+		// Content stream length:
+		bits.write(minLength, 32);
+		bits.write(lengthBits, 16);
+		bits.write(sharedBits, 16);
+		bits.write(identifierBits, 16);
+		// Numerator and denominator of the position of shared objects:
+		bits.write(0, 16);
+		bits.write(1, 16);
+
+		// Each item starts at byte boundary:
+		for (int i = 0; i < numberOfPages; i++) {
+			bits.write(pageObjects[i] - minObjects, objectsBits);
+		}
+		bits.flush();
+		for (int i = 0; i < numberOfPages; i++) {
+			bits.write(pageLengths[i] - minLength, lengthBits);
+		}
+		bits.flush();
+		for (int i = 0; i < numberOfPages; i++) {
+			bits.write(shared.get(i).length, sharedBits);
+		}
+		bits.flush();
+		for (int i = 0; i < numberOfPages; i++) {
+			for (int index : shared.get(i)) {
+				bits.write(index, identifierBits);
+			}
+		}
+		bits.flush();
+		for (int i = 0; i < numberOfPages; i++) {
+			bits.write(pageLengths[i] - minLength, lengthBits);
+		}
+		bits.flush();
+
+		return bits.toByteArray();
+	}
+
+	/**
+	 * Returns the shared object hint table, where each object is a group of its own.
+	 *
+	 * @param firstShared number of objects of the first page section, which start the body
+	 * @param otherStart index of the first object shared by other pages in the body
+	 * @param otherShared number of objects shared by other pages
+	 */
+	private static byte[] sharedObjectHints(long[] bodyLengths, long[] bodyOffsets, long bodyOffset, int firstShared,
+	            int otherStart, int otherShared) {
+		long[] lengths = new long[firstShared + otherShared];
+		System.arraycopy(bodyLengths, 0, lengths, 0, firstShared);
+		System.arraycopy(bodyLengths, otherStart, lengths, firstShared, otherShared);
+
+		long minLength = Arrays.stream(lengths).min().getAsLong();
+		int lengthBits = bitsOf(Arrays.stream(lengths).max().getAsLong() - minLength);
+
+		BitWriter bits = new BitWriter();
+		if (otherShared > 0) {
+			// Objects of the main cross-reference table are numbered from 1 in the order of the body:
+			bits.write(otherStart - firstShared + 1, 32);
+			bits.write(bodyOffset + bodyOffsets[otherStart], 32);
+		}
+		else {
+			bits.write(0, 32);
+			bits.write(0, 32);
+		}
+		bits.write(firstShared, 32);
+		bits.write(lengths.length, 32);
+		bits.write(0, 16);
+		bits.write(minLength, 32);
+		bits.write(lengthBits, 16);
+
+		for (long length : lengths) {
+			bits.write(length - minLength, lengthBits);
+		}
+		bits.flush();
+		// No signatures:
+		for (int i = 0; i < lengths.length; i++) {
+			bits.write(0, 1);
+		}
+		bits.flush();
+
+		return bits.toByteArray();
+	}
+
+	private static byte[] hintStream(int number, byte[] pageOffsetHints, byte[] sharedObjectHints) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		write(os, number + " 0 obj\n<</Length " + (pageOffsetHints.length + sharedObjectHints.length) + "/S "
+		            + pageOffsetHints.length + ">>\nstream\n");
+		os.write(pageOffsetHints);
+		os.write(sharedObjectHints);
+		write(os, "\nendstream\nendobj\n");
+		return os.toByteArray();
+	}
+
+	private static int bitsOf(long value) {
+		return 64 - Long.numberOfLeadingZeros(value);
+	}
+
+	private static long sum(long[] values, int from, int to) {
+		long sum = 0;
+		for (int i = from; i < to; i++) {
+			sum += values[i];
+		}
+		return sum;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		return list.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	private static void place(List<Integer> objects, boolean[] placed) {
+		for (int n : objects) {
+			placed[n] = true;
+		}
+	}
+
+	private static String xrefEntry(long offset) {
+		return String.format("%010d 00000 n \n", offset);
+	}
+
+	private static void checkOffset(CountingOutputStream out, long offset) throws IOException {
+		if (out.getByteCount() != offset) {
+			throw new IOException("Object was written at " + out.getByteCount() + " instead of " + offset);
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static void write(OutputStream os, String s) throws IOException {
+		os.write(ascii(s));
+	}
+
+	/**
+	 * Writes values to bytes starting with the most significant bit.
+	 */
+	private static final class BitWriter {
+
+		private final ByteArrayOutputStream	bytes	= new ByteArrayOutputStream();
+
+		private int							current;
+
+		private int							count;
+
+		void write(long value, int bits) {
+			for (int i = bits - 1; i >= 0; i--) {
+				current = current << 1 | (int) (value >>> i & 1);
+				if (++count == 8) {
+					flush();
+				}
+			}
+		}
+
+		/**
+		 * Pads the current byte with zero bits.
+		 */
+		void flush() {
+			if (count > 0) {
+				bytes.write(current << 8 - count);
+				current = 0;
+				count = 0;
+			}
+		}
+
+		int size() {
+			return bytes.size();
+		}
+
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package com.github.merge2pdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.github.merge2pdf.MergeOptions.CopyStrategy;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.pdf.BadPdfFormatException;
+import com.itextpdf.text.pdf.ByteBuffer;
+import com.itextpdf.text.pdf.PRIndirectReference;
+import com.itextpdf.text.pdf.PRStream;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectObject;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSmartCopy;
+import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.RefKey;
+
+/**
+ * {@link PdfSmartCopy} which in addition to pages of PDF documents writes pages with images directly to the output,
+ * without creating an intermediate PDF document for them. Objects of PDF documents are copied according to
+ * {@link CopyStrategy}, which also decides whether an image used by several pages is written once.
+ */
+class MergeCopy extends PdfSmartCopy {
+
+	/**
+	 * Fingerprint of a stream (its dictionary and raw data) copied by {@link CopyStrategy#bounded} strategy.
+	 */
+	private static final class Fingerprint {
+		final byte[]	digest;
+
+		Fingerprint(byte[] digest) {
+			this.digest = digest;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(digest);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Fingerprint && Arrays.equals(digest, ((Fingerprint) obj).digest);
+		}
+	}
+
+	/**
+	 * Image XObject written to the output and its name in page resources.
+	 */
+	private static final class WrittenImage {
+		final PdfName				name;
+		final PdfIndirectReference	ref;
+
+		WrittenImage(PdfName name, PdfIndirectReference ref) {
+			this.name = name;
+			this.ref = ref;
+		}
+	}
+
+	private final CopyStrategy								copyStrategy;
+
+	private final int										minStreamSize;
+
+	/**
+	 * Recently copied streams, used by {@link CopyStrategy#bounded} strategy.
+	 */
+	private final Map<Fingerprint, PdfIndirectReference>	streams;
+
+	/**
+	 * Streams of current document which fingerprint is being calculated.
+	 */
+	private final Set<RefKey>								fingerprinted	= new HashSet<>();
+
+	/**
+	 * Images written by {@link #addImagePage(ImagePage)} by their {@link ImagePage#source source}, or {@code null}
+	 * for {@link CopyStrategy#plain} strategy. All images are remembered by {@link CopyStrategy#smart} strategy and
+	 * only recently written ones by {@link CopyStrategy#bounded} strategy.
+	 */
+	private final Map<String, WrittenImage>					images;
+
+	/**
+	 * Entries to be added to the page which is being added by {@link #addImagePage(ImagePage)}.
+	 */
+	private PdfDictionary									pendingPageEntries;
+
+	MergeCopy(Document document, OutputStream os, MergeOptions options) throws DocumentException {
+		super(document, os);
+
+		if (options.isObjectStreams()) {
+			setFullCompression();
+		}
+
+		this.copyStrategy = options.getCopyStrategy();
+		this.minStreamSize = options.getDedupMinStreamSize();
+
+		int maxStreams = options.getDedupCacheSize();
+		this.streams = recentlyUsed(maxStreams);
+
+		switch (copyStrategy) {
+		case plain:
+			this.images = null;
+			break;
+		case smart:
+			this.images = new HashMap<>();
+			break;
+		default:
+			this.images = recentlyUsed(maxStreams);
+		}
+	}
+
+	/**
+	 * Returns the map which keeps at most given number of recently used entries.
+	 */
+	private static <K, V> Map<K, V> recentlyUsed(int maxSize) {
+		return new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Adds the page with given image. The image is written unless the same image has already been written.
+	 */
+	void addImagePage(ImagePage imagePage) throws DocumentException, IOException {
+		WrittenImage writtenImage = images == null ? null : images.get(imagePage.source);
+
+		if (writtenImage == null) {
+			writtenImage = addImage(imagePage);
+
+			if (images != null) {
+				images.put(imagePage.source, writtenImage);
+			}
+		}
+
+		PdfName imageName = writtenImage.name;
+		PdfIndirectReference imageRef = writtenImage.ref;
+
+		float[] matrix = imagePage.matrix;
+		ByteBuffer content = new ByteBuffer();
+		content.append("q ");
+		for (int i = 0; i < 6; i++) {
+			content.append(matrix[i]).append(' ');
+		}
+		content.append("cm ").append(imageName.getBytes()).append(" Do Q\n");
+
+		PdfStream contents = new PdfStream(content.toByteArray());
+		contents.flateCompress(getCompressionLevel());
+
+		PdfDictionary xObjects = new PdfDictionary();
+		xObjects.put(imageName, imageRef);
+		PdfDictionary resources = new PdfDictionary();
+		resources.put(PdfName.XOBJECT, xObjects);
+
+		pendingPageEntries = new PdfDictionary();
+		pendingPageEntries.put(PdfName.RESOURCES, resources);
+		pendingPageEntries.put(PdfName.CONTENTS, addToBody(contents).getIndirectReference());
+
+		try {
+			// Page dictionary is written to the output as soon as it is added to the page tree:
+			addPage(imagePage.pageSize, 0);
+		}
+		finally {
+			pendingPageEntries = null;
+		}
+	}
+
+	/**
+	 * Writes the image of given page (with its ICC profile or mask) to the output.
+	 */
+	private WrittenImage addImage(ImagePage imagePage) throws DocumentException, IOException {
+		if (imagePage.pdfImage != null) {
+			if (imagePage.iccProfile != null) {
+				// Same as PdfWriter does for images with ICC profile:
+				PdfArray iccColorSpace = new PdfArray();
+				iccColorSpace.add(PdfName.ICCBASED);
+				iccColorSpace.add(addToBody(imagePage.iccProfile).getIndirectReference());
+
+				PdfArray colorSpace = imagePage.pdfImage.getAsArray(PdfName.COLORSPACE);
+				if (colorSpace != null && colorSpace.size() > 1 && PdfName.INDEXED.equals(colorSpace.getPdfObject(0))) {
+					colorSpace.set(1, iccColorSpace);
+				}
+				else {
+					imagePage.pdfImage.put(PdfName.COLORSPACE, iccColorSpace);
+				}
+			}
+
+			return new WrittenImage(new PdfName(ImagePage.IMAGE_NAME),
+			            addToBody(imagePage.pdfImage).getIndirectReference());
+		}
+		else {
+			// Let the writer add the image together with its ICC profile, etc. The mask has to be added first:
+			if (imagePage.image.getImageMask() != null) {
+				addDirectImageSimple(imagePage.image.getImageMask());
+			}
+			PdfName imageName = addDirectImageSimple(imagePage.image);
+			return new WrittenImage(imageName, (PdfIndirectReference) imageDictionary.get(imageName));
+		}
+	}
+
+	@Override
+	protected PdfIndirectReference copyIndirect(PRIndirectReference in) throws IOException, BadPdfFormatException {
+		switch (copyStrategy) {
+		case plain:
+			// Copy as PdfCopy does:
+			return copyIndirect(in, false, false);
+		case smart:
+			return super.copyIndirect(in);
+		default:
+			return copyIndirectBounded(in);
+		}
+	}
+
+	/**
+	 * Copies given object unless it is a stream which is identical to one of recently copied streams.
+	 */
+	private PdfIndirectReference copyIndirectBounded(PRIndirectReference in) throws IOException, BadPdfFormatException {
+		RefKey key = new RefKey(in);
+
+		// Objects of current document which were already copied are known by their reference. Streams which refer
+		// to each other are copied as they are:
+		if (indirects.containsKey(key) || fingerprinted.contains(key)) {
+			return copyIndirect(in, false, false);
+		}
+
+		PdfObject obj = PdfReader.getPdfObject(in);
+
+		if (obj == null || !obj.isStream() || ((PRStream) obj).getLength() < minStreamSize) {
+			return copyIndirect(in, false, false);
+		}
+
+		Fingerprint fingerprint;
+		fingerprinted.add(key);
+		try {
+			fingerprint = fingerprint((PRStream) obj);
+		}
+		finally {
+			fingerprinted.remove(key);
+		}
+
+		PdfIndirectReference ref = streams.get(fingerprint);
+
+		if (ref == null) {
+			ref = copyIndirect(in, false, false);
+
+			if (ref != null) {
+				streams.put(fingerprint, ref);
+			}
+		}
+
+		return ref;
+	}
+
+	/**
+	 * Returns the digest of the dictionary and raw data of given stream. Objects referenced by the dictionary (i.e.
+	 * soft mask of the image) are copied first, so that they are identified by their reference in the output.
+	 */
+	private Fingerprint fingerprint(PRStream stream) throws IOException, BadPdfFormatException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		PdfDictionary dict = new PdfDictionary();
+		dict.merge(stream);
+		// Length could be an indirect object, however raw data is compared anyway:
+		dict.remove(PdfName.LENGTH);
+
+		digest(md, dict);
+		md.update(PdfReader.getStreamBytesRaw(stream));
+
+		return new Fingerprint(md.digest());
+	}
+
+	private void digest(MessageDigest md, PdfObject obj) throws IOException, BadPdfFormatException {
+		if (obj == null) {
+			md.update((byte) 0);
+			return;
+		}
+
+		md.update((byte) obj.type());
+
+		if (obj instanceof PRIndirectReference) {
+			PdfIndirectReference ref = copyIndirect((PRIndirectReference) obj);
+			md.update(String.valueOf(ref == null ? 0 : ref.getNumber()).getBytes(StandardCharsets.ISO_8859_1));
+		}
+		else if (obj.isDictionary()) {
+			Map<PdfName, PdfObject> entries = new TreeMap<>();
+			for (PdfName key : ((PdfDictionary) obj).getKeys()) {
+				entries.put(key, ((PdfDictionary) obj).get(key));
+			}
+
+			for (Map.Entry<PdfName, PdfObject> entry : entries.entrySet()) {
+				md.update(entry.getKey().getBytes());
+				digest(md, entry.getValue());
+			}
+		}
+		else if (obj.isArray()) {
+			for (PdfObject item : (PdfArray) obj) {
+				digest(md, item);
+			}
+		}
+		else {
+			byte[] bytes = obj.getBytes();
+			md.update(bytes != null ? bytes : obj.toString().getBytes(StandardCharsets.ISO_8859_1));
+		}
+
+		// Terminate the value, so that nested values are not confused:
+		md.update((byte) 0xff);
+	}
+
+	@Override
+	public PdfIndirectObject addToBody(PdfObject object, PdfIndirectReference ref) throws IOException {
+		if (pendingPageEntries != null && object.isDictionary()
+		            && PdfName.PAGE.equals(((PdfDictionary) object).get(PdfName.TYPE))) {
+			((PdfDictionary) object).merge(pendingPageEntries);
+			pendingPageEntries = null;
+		}
+
+		return super.addToBody(object, ref);
+	}
+}
@@ -0,0 +1,616 @@
+package com.github.merge2pdf;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.merge2pdf.MergeOptions.Gravity;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.io.RandomAccessSource;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfWriter;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+import com.itextpdf.text.pdf.codec.TiffImage;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Merges PDFs and images (JPEG, PNG, TIFF, ...) into one PDF according to given {@link MergeOptions}. The engine keeps
+ * no state between merges, hence one instance can be used by many threads concurrently. Images can be converted to
+ * PDF pages on a pool of threads ahead of the copier.
+ */
+public class MergeEngine implements Closeable {
+
+	/**
+	 * PDF considers page sizes at 72 dpi, see {@link PageSize}.
+	 */
+	static final int				PDF_DPI				 = 72;
+
+	private static final Log		logger				 = LogFactory.getLog(MergeEngine.class);
+
+	/**
+	 * Number of inputs per image thread which are converted ahead of the copier.
+	 */
+	private static final int		LOOKAHEAD_PER_THREAD = 2;
+
+	private final MergeOptions		options;
+
+	/**
+	 * Converts images ahead of the copier or {@code null} if images are converted by the thread which merges.
+	 */
+	private final ExecutorService	imageExecutor;
+
+	private final int				lookahead;
+
+	/**
+	 * Removes embedded fonts or {@code null} if fonts are kept.
+	 */
+	private final FontRemoval		fontRemoval;
+
+	/**
+	 * Resamples images with too high resolution or {@code null} if images are kept as they are.
+	 */
+	private final ImageDownsampling	downsampling;
+
+	public MergeEngine(MergeOptions options) {
+		this(options, 1);
+	}
+
+	/**
+	 * Creates the engine which converts images on given number of threads. The threads are shared by all merges and
+	 * are stopped when the engine is closed.
+	 */
+	public MergeEngine(MergeOptions options, int imageThreads) {
+		if (imageThreads <= 0) {
+			throw new IllegalArgumentException(
+			            "Image threads should be a positive integer but was " + imageThreads + ".");
+		}
+
+		this.options = options;
+		this.lookahead = imageThreads * LOOKAHEAD_PER_THREAD;
+		this.fontRemoval = options.getFontNameFilter() == null ? null : new FontRemoval(options.getFontNameFilter());
+		this.downsampling = options.getMaxDpi() == 0 ? null : new ImageDownsampling(options.getMaxDpi());
+
+		if (imageThreads > 1) {
+			AtomicInteger threadNumber = new AtomicInteger();
+			this.imageExecutor = Executors.newFixedThreadPool(imageThreads, runnable -> {
+				Thread thread = new Thread(runnable, "merge2pdf-image-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		else {
+			this.imageExecutor = null;
+		}
+	}
+
+	public MergeOptions getOptions() {
+		return options;
+	}
+
+	@Override
+	public void close() {
+		if (imageExecutor != null) {
+			imageExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Merges given input files into given output file.
+	 */
+	public void merge(List<String> inputs, String output) throws DocumentException, IOException {
+		merge(inputs, output, new SharedPdfs(Collections.<String> emptyList()), new MergeStats());
+	}
+
+	/**
+	 * Merges given input files into given output file. Shared PDFs are parsed once for all merges which use given
+	 * {@link SharedPdfs}. The time spent in each stage and the number of output pages are added to given statistics.
+	 * The output file appears only once it is completely written.
+	 */
+	public void merge(List<String> inputs, String output, SharedPdfs sharedPdfs, MergeStats stats)
+	            throws DocumentException, IOException {
+		try (ImageConversions conversions = new ImageConversions(inputs);
+		            AtomicOutput out = new AtomicOutput(new File(output), options.getFsyncPolicy())) {
+			merge(inputs, out, sharedPdfs, stats, conversions);
+		}
+	}
+
+	private void merge(List<String> inputs, AtomicOutput out, SharedPdfs sharedPdfs, MergeStats stats,
+	            ImageConversions conversions) throws DocumentException, IOException {
+		if (!options.isLinearize()) {
+			copy(inputs, out.stream(), sharedPdfs, stats, conversions);
+		}
+		else {
+			// Linearized order is known once the document is complete, hence it is written to a temporary file first:
+			Path unlinearized = out.createTempFile(".unlinearized.tmp");
+			try {
+				try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(unlinearized))) {
+					copy(inputs, os, sharedPdfs, stats, conversions);
+				}
+
+				long stageStart = System.nanoTime();
+				Linearization.linearize(unlinearized.toString(), out.stream());
+				stats.writeNanos += System.nanoTime() - stageStart;
+			}
+			finally {
+				Files.deleteIfExists(unlinearized);
+			}
+		}
+
+		long stageStart = System.nanoTime();
+		out.commit();
+		stats.writeNanos += System.nanoTime() - stageStart;
+	}
+
+	/**
+	 * Copies pages of given inputs to given stream, which is not closed.
+	 */
+	private void copy(List<String> inputs, OutputStream os, SharedPdfs sharedPdfs, MergeStats stats,
+	            ImageConversions conversions) throws DocumentException, IOException {
+		Document mergedDocument = new Document();
+		MergeCopy pdfCopyWriter = new MergeCopy(mergedDocument, os, options);
+		// The output is closed by the caller:
+		pdfCopyWriter.setCloseStream(false);
+		mergedDocument.open();
+
+		for (int a = 0; a < inputs.size(); a++) {
+			PdfReader reader;
+			List<Integer> pages = null;
+			String file = PageSelection.fileOf(inputs.get(a));
+			PageSelection selection = PageSelection.of(inputs.get(a));
+			long stageStart = System.nanoTime();
+			if (!isImage(file)) {
+				logger.info("Adding PDF " + inputs.get(a) + "...");
+				// Copy PDF document:
+				reader = open(file, sharedPdfs, selection != null);
+
+				if (selection != null) {
+					pages = selection.pages(reader.getNumberOfPages());
+				}
+
+				if (fontRemoval != null) {
+					fontRemoval.removeFonts(reader, pages != null ? pages : allPages(reader.getNumberOfPages()));
+				}
+
+				// Unused objects (i.e. removed font files) are not removed from the reader: the copy writes only
+				// objects reachable from copied pages, hence the output does not contain them anyway.
+				stats.parseNanos += System.nanoTime() - stageStart;
+			}
+			else {
+				logger.info("Adding image " + inputs.get(a) + "...");
+
+				ConvertedImage image = conversions.get(a);
+				stats.imageNanos += System.nanoTime() - stageStart;
+
+				stageStart = System.nanoTime();
+				if (image.pages != null) {
+					// Write pages directly to the output without the intermediate PDF:
+					for (ImagePage page : image.pages) {
+						pdfCopyWriter.addImagePage(page);
+					}
+				}
+				else {
+					// Copy PDF document which is a sequence of pages each having one selected image:
+					reader = new PdfReader(image.pdf);
+					pdfCopyWriter.addDocument(reader);
+					reader.close();
+				}
+				stats.copyNanos += System.nanoTime() - stageStart;
+				continue;
+			}
+
+			stageStart = System.nanoTime();
+			if (selection == null) {
+				pdfCopyWriter.addDocument(reader);
+			}
+			else {
+				if (pages == null) {
+					pages = selection.pages(reader.getNumberOfPages());
+				}
+
+				// Only selected pages and resources they refer to are read and copied:
+				for (int page : pages) {
+					pdfCopyWriter.addPage(pdfCopyWriter.getImportedPage(reader, page));
+				}
+			}
+			reader.close();
+			stats.copyNanos += System.nanoTime() - stageStart;
+		}
+
+		stats.outputPages += pdfCopyWriter.getCurrentPageNumber() - 1;
+
+		long stageStart = System.nanoTime();
+		mergedDocument.close();
+		stats.writeNanos += System.nanoTime() - stageStart;
+	}
+
+	/**
+	 * Returns the sizes of the pages which given input (with optional page selection) contributes to the output. Only
+	 * the headers of images and the page tree of PDFs are read, so that merges can be planned without decoding pixels
+	 * or copying content.
+	 */
+	public List<Rectangle> pageSizes(String input) throws DocumentException, IOException {
+		String file = PageSelection.fileOf(input);
+		PageSelection selection = PageSelection.of(input);
+		List<Rectangle> pageSizes = new ArrayList<>();
+
+		if (!isImage(file)) {
+			PdfReader reader = new PartialPdfReader(file,
+			            options.getMaxCachedObjects() > 0 ? options.getMaxCachedObjects() : Integer.MAX_VALUE);
+			try {
+				int numberOfPages = reader.getNumberOfPages();
+				for (int page : selection == null ? allPages(numberOfPages) : selection.pages(numberOfPages)) {
+					pageSizes.add(reader.getPageSizeWithRotation(page));
+				}
+			}
+			finally {
+				reader.close();
+			}
+
+			return pageSizes;
+		}
+
+		List<ImageProbe> probes = ImageProbe.probe(file);
+		for (int number : selection == null ? allPages(probes.size()) : selection.pages(probes.size())) {
+			pageSizes.add(layout(probes.get(number - 1).placeholder()));
+		}
+
+		return pageSizes;
+	}
+
+	/**
+	 * Opens given PDF input. Unless the input is shared, it is read partially if the number of cached objects is
+	 * limited by the options or if only some pages are selected from it.
+	 */
+	private PdfReader open(String file, SharedPdfs sharedPdfs, boolean selective) throws IOException {
+		int maxCachedObjects = options.getMaxCachedObjects();
+
+		if (sharedPdfs.isShared(file)) {
+			return sharedPdfs.open(file);
+		}
+
+		if (maxCachedObjects > 0) {
+			return new PartialPdfReader(file, maxCachedObjects);
+		}
+
+		if (selective) {
+			return new PartialPdfReader(file, Integer.MAX_VALUE);
+		}
+
+		return new PdfReader(file);
+	}
+
+	private static List<Integer> allPages(int numberOfPages) {
+		List<Integer> pages = new ArrayList<>();
+		for (int page = 1; page <= numberOfPages; page++) {
+			pages.add(page);
+		}
+		return pages;
+	}
+
+	/**
+	 * Image file converted either to pages which are written directly to the output or (if some image is not supported
+	 * by {@link ImagePage}) to PDF document.
+	 */
+	private static final class ConvertedImage {
+		final List<ImagePage>	pages;
+		final byte[]			pdf;
+
+		ConvertedImage(List<ImagePage> pages, byte[] pdf) {
+			this.pages = pages;
+			this.pdf = pdf;
+		}
+	}
+
+	/**
+	 * Image conversions of one merge. Images are converted on the pool of the engine at most
+	 * {@link MergeEngine#lookahead} inputs ahead of the input being copied, and are consumed in the input order.
+	 * Without the pool the image is converted when it is requested.
+	 */
+	private final class ImageConversions implements Closeable {
+
+		private final List<String>							inputs;
+
+		private final Map<Integer, Future<ConvertedImage>>	futures	= new HashMap<>();
+
+		/**
+		 * Index of the next input to be considered for conversion.
+		 */
+		private int											next	= 0;
+
+		ImageConversions(List<String> inputs) {
+			this.inputs = inputs;
+			submitUpTo(lookahead);
+		}
+
+		private void submitUpTo(int end) {
+			if (imageExecutor == null) {
+				return;
+			}
+
+			for (; next < Math.min(end, inputs.size()); next++) {
+				String file = PageSelection.fileOf(inputs.get(next));
+				if (isImage(file)) {
+					PageSelection selection = PageSelection.of(inputs.get(next));
+					futures.put(next, imageExecutor.submit(() -> convertImage(file, selection)));
+				}
+			}
+		}
+
+		/**
+		 * Returns the conversion of the image with given input index.
+		 */
+		ConvertedImage get(int index) throws DocumentException, IOException {
+			if (imageExecutor == null) {
+				return convertImage(PageSelection.fileOf(inputs.get(index)), PageSelection.of(inputs.get(index)));
+			}
+
+			submitUpTo(index + 1 + lookahead);
+
+			try {
+				return futures.remove(index).get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while converting " + inputs.get(index));
+			}
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof DocumentException) {
+					throw (DocumentException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IllegalStateException(cause);
+			}
+		}
+
+		/**
+		 * Cancels conversions which are not needed as the merge has failed.
+		 */
+		@Override
+		public void close() {
+			for (Future<ConvertedImage> future : futures.values()) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private static boolean isImage(String file) {
+		return !file.toLowerCase().endsWith(".pdf");
+	}
+
+	/**
+	 * Reads selected images of given image file (pages in case of TIFF) and lays out each image on its own page,
+	 * resampling images which exceed the maximum resolution. Images which cannot be written to the output directly are
+	 * converted to PDF.
+	 */
+	private ConvertedImage convertImage(String file, PageSelection selection) throws DocumentException, IOException {
+		// Pages are laid out from the headers before any pixel data is loaded. Images which are not selected are not
+		// decoded at all:
+		List<ImageProbe> probes = ImageProbe.probe(file);
+		List<Integer> numbers = selection == null ? allPages(probes.size()) : selection.pages(probes.size());
+		List<Image> placeholders = new ArrayList<>();
+		List<Rectangle> pageSizes = new ArrayList<>();
+
+		for (int number : numbers) {
+			Image placeholder = probes.get(number - 1).placeholder();
+			pageSizes.add(layout(placeholder));
+			placeholders.add(placeholder);
+		}
+
+		List<Image> images = readImages(file, numbers, probes);
+		boolean supported = true;
+
+		for (int i = 0; i < images.size(); i++) {
+			place(images.get(i), placeholders.get(i));
+
+			if (downsampling != null) {
+				// Resolution on the page is known once the image is laid out:
+				images.set(i, downsampling.downsample(images.get(i), file, numbers.get(i) - 1));
+			}
+
+			supported &= ImagePage.isSupported(images.get(i));
+		}
+
+		if (!supported) {
+			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+
+			Document imageDocument = new Document();
+			PdfWriter imageWriter = PdfWriter.getInstance(imageDocument, byteStream);
+			if (options.isObjectStreams()) {
+				imageWriter.setFullCompression();
+			}
+
+			imageDocument.open();
+
+			for (int i = 0; i < images.size(); i++) {
+				imageDocument.setPageSize(pageSizes.get(i));
+				imageDocument.newPage();
+				imageDocument.add(images.get(i));
+			}
+
+			imageDocument.close();
+
+			return new ConvertedImage(null, byteStream.toByteArray());
+		}
+
+		List<ImagePage> pages = new ArrayList<>();
+		for (int i = 0; i < images.size(); i++) {
+			pages.add(new ImagePage(images.get(i), pageSizes.get(i), file, numbers.get(i)));
+		}
+
+		return new ConvertedImage(pages, null);
+	}
+
+	/**
+	 * Reads images with given numbers from given file, reusing the image which has been read by given probes.
+	 */
+	private static List<Image> readImages(String file, List<Integer> numbers, List<ImageProbe> probes)
+	            throws DocumentException, IOException {
+		List<Image> images = new ArrayList<>();
+
+		if (file.toLowerCase().endsWith(".tiff") || file.toLowerCase().endsWith(".tif")) {
+			// Read given pages from TIFF image:
+			// See also https://stackoverflow.com/questions/49414913/
+			RandomAccessSource source = new RandomAccessSourceFactory()
+			            .createBestSource(new RandomAccessFile(file, "r"));
+			try {
+				RandomAccessFileOrArray rafa = new RandomAccessFileOrArray(source);
+				for (int p : numbers) {
+					images.add(TiffImage.getTiffImage(rafa, p));
+				}
+			}
+			finally {
+				source.close();
+			}
+		}
+		else if (!numbers.isEmpty()) {
+			// Create single page with the dimensions as source image and no margins. Image data of PNG is read only
+			// when it is written to the output:
+			Image image = PngStream.read(file);
+			if (image == null) {
+				image = probes.get(0).image != null ? probes.get(0).image : Image.getInstance(file);
+			}
+			images.add(image);
+		}
+
+		return images;
+	}
+
+	/**
+	 * Scales and positions given image the same way as given placeholder of the image has been laid out.
+	 */
+	private static void place(Image image, Image placeholder) {
+		image.scaleAbsolute(placeholder.getPlainWidth(), placeholder.getPlainHeight());
+		image.setAbsolutePosition(placeholder.getAbsoluteX(), placeholder.getAbsoluteY());
+	}
+
+	/**
+	 * Scales and positions given image according to the options and returns the size of the page for the image.
+	 */
+	private Rectangle layout(Image image) {
+		boolean scaleToDpi = options.isScaleToDpi();
+		Rectangle scaleToBox = options.getScaleToBox();
+		Rectangle scaleToPage = options.getScaleToPage();
+		Gravity gravity = options.getGravity();
+		int border = options.getBorder();
+
+		if (scaleToDpi && image.getDpiX() > 0 && image.getDpiY() > 0
+		            && (image.getDpiX() != PDF_DPI || image.getDpiY() != PDF_DPI)) {
+			image.scalePercent(100f * PDF_DPI / image.getDpiX(), 100f * PDF_DPI / image.getDpiY());
+			logger.debug(String.format("Scaled image as to %d DPI (%.2f, %.2f) -> (%.2f, %.2f)",
+			            image.getDpiX(), image.getWidth(), image.getHeight(), image.getScaledWidth(),
+			            image.getScaledHeight()));
+		}
+
+		if (scaleToBox != null) {
+			scaleToBox(image, scaleToBox, 0);
+		}
+
+		Rectangle page;
+
+		if (scaleToPage != null) {
+			page = scaleToBox(image, scaleToPage, border);
+
+			//FIXME: apply gravity
+			switch (gravity) {
+			case center:
+				image.setAbsolutePosition(page.getWidth() / 2 - image.getScaledWidth() / 2,
+				            page.getHeight() / 2 - image.getScaledHeight() / 2);
+				break;
+			case top:
+				image.setAbsolutePosition(page.getWidth() / 2 - image.getScaledWidth() / 2,
+				            page.getHeight() - image.getScaledHeight() - border);
+				break;
+			case topRight:
+				image.setAbsolutePosition(page.getWidth() - image.getScaledWidth() - border,
+				            page.getHeight() - image.getScaledHeight() - border);
+				break;
+			case right:
+				image.setAbsolutePosition(page.getWidth() - image.getScaledWidth() - border,
+				            page.getHeight() / 2 - image.getScaledHeight() / 2);
+				break;
+			case bottomRight:
+				image.setAbsolutePosition(page.getWidth() - image.getScaledWidth() - border, border);
+				break;
+			case bottom:
+				image.setAbsolutePosition(page.getWidth() / 2 - image.getScaledWidth() / 2, border);
+				break;
+			case bottomLeft:
+				image.setAbsolutePosition(border, border);
+				break;
+			case left:
+				image.setAbsolutePosition(border, page.getHeight() / 2 - image.getScaledHeight() / 2);
+				break;
+			case topLeft:
+				image.setAbsolutePosition(border, page.getHeight() - image.getScaledHeight() - border);
+				break;
+			}
+		}
+		else {
+			// The page could be later scaled to given page when it is printed by PDF viewer:
+			image.setAbsolutePosition(border, border);
+			page = new Rectangle(image.getScaledWidth() + border * 2, image.getScaledHeight() + border * 2);
+		}
+
+		return page;
+	}
+
+	/**
+	 * Scale down given image to given box..
+	 */
+	private static Rectangle scaleToBox(Image image, Rectangle box, int border) {
+		// If image does not fit the page after DPI and box scale (if requested), then scale it further down:
+		if (isImageNotFittingBox(image, box, border)) {
+			if (image.getScaledWidth() > image.getScaledHeight()) {
+				// Rotate the page by 90 degrees effectively changing portrait orientation to landscape and vice versa:
+				box = new Rectangle(box.getHeight(), box.getWidth());
+
+				if (isImageNotFittingBox(image, box, border)) {
+					image.scaleToFit(box.getWidth() - border * 2, box.getHeight() - border * 2);
+				}
+			}
+			else {
+				image.scaleToFit(box.getWidth() - border * 2, box.getHeight() - border * 2);
+			}
+		}
+
+		return box;
+	}
+
+	/**
+	 * Returns {@code true} if given image does not fit the given box including the given margin (border).
+	 */
+	private static boolean isImageNotFittingBox(Image image, Rectangle box, int border) {
+		return image.getScaledWidth() > box.getWidth() - border * 2
+		            || image.getScaledHeight() > box.getHeight() - border * 2;
+	}
+}
@@ -0,0 +1,488 @@
+package com.github.merge2pdf;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.Rectangle;
+
+/**
+ * Validated options of {@link MergeEngine}. Instances are immutable and are created by {@link Builder}, which
+ * reports invalid values with {@link IllegalArgumentException}.
+ */
+public final class MergeOptions {
+
+	public enum Gravity {
+		center("centre"), top("north"), topRight("northEast"), right("east"), bottomRight("southEast"), bottom(
+		            "south"), bottomLeft("southWest"), left("west"), topLeft("northWest");
+
+		private final String alias;
+
+		Gravity(String alias) {
+			this.alias = alias;
+		}
+
+		public String alias() {
+			return alias;
+		}
+
+		/**
+		 * Returns the gravity with given name or alias (case-insensitive) or {@code null}.
+		 */
+		public static Gravity forName(String name) {
+			for (Gravity g : values()) {
+				if (g.name().equalsIgnoreCase(name) || g.alias().equalsIgnoreCase(name)) {
+					return g;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * How objects of PDF inputs are copied to the output.
+	 */
+	public enum CopyStrategy {
+		/**
+		 * Copy objects as they are, identical objects of different inputs are written several times.
+		 */
+		plain,
+		/**
+		 * Write identical streams and dictionaries once, remembering all of them for the whole output.
+		 */
+		smart,
+		/**
+		 * Write identical streams once, remembering only limited number of recently copied streams.
+		 */
+		bounded;
+
+		/**
+		 * Returns the strategy with given name (case-insensitive) or {@code null}.
+		 */
+		public static CopyStrategy forName(String name) {
+			for (CopyStrategy s : values()) {
+				if (s.name().equalsIgnoreCase(name)) {
+					return s;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * When the written output is forced to the storage before it is renamed to its final name.
+	 */
+	public enum FsyncPolicy {
+		/**
+		 * Leave it to the operating system.
+		 */
+		none,
+		/**
+		 * Force the content of the file.
+		 */
+		file,
+		/**
+		 * Force the content of the file and, after it is renamed, its directory.
+		 */
+		full;
+
+		/**
+		 * Returns the policy with given name (case-insensitive) or {@code null}.
+		 */
+		public static FsyncPolicy forName(String name) {
+			for (FsyncPolicy p : values()) {
+				if (p.name().equalsIgnoreCase(name)) {
+					return p;
+				}
+			}
+			return null;
+		}
+	}
+
+	public static final int	DEFAULT_DEDUP_CACHE_SIZE		= 1000;
+
+	public static final int	DEFAULT_DEDUP_MIN_STREAM_SIZE	= 1024;
+
+	private final boolean	scaleToDpi;
+
+	private final Rectangle	scaleToBox;
+
+	private final Rectangle	scaleToPage;
+
+	private final Gravity	gravity;
+
+	private final int		border;
+
+	private final int		maxDpi;
+
+	private final Pattern	fontNameFilter;
+
+	private final int		maxCachedObjects;
+
+	private final CopyStrategy	copyStrategy;
+
+	private final int		dedupCacheSize;
+
+	private final int		dedupMinStreamSize;
+
+	private final FsyncPolicy	fsyncPolicy;
+
+	private final boolean	objectStreams;
+
+	private final boolean	linearize;
+
+	private MergeOptions(Builder builder) {
+		this.scaleToDpi = builder.scaleToDpi;
+		this.scaleToBox = copy(builder.scaleToBox);
+		this.scaleToPage = copy(builder.scaleToPage);
+		this.gravity = builder.gravity == null ? Gravity.center : builder.gravity;
+		this.border = builder.border;
+		this.maxDpi = builder.maxDpi;
+		this.fontNameFilter = builder.fontNameFilter;
+		this.maxCachedObjects = builder.maxCachedObjects;
+		this.copyStrategy = builder.copyStrategy;
+		this.dedupCacheSize = builder.dedupCacheSize;
+		this.dedupMinStreamSize = builder.dedupMinStreamSize;
+		this.fsyncPolicy = builder.fsyncPolicy;
+		this.objectStreams = builder.objectStreams;
+		this.linearize = builder.linearize;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Returns {@code true} if images are scaled according to their DPI.
+	 */
+	public boolean isScaleToDpi() {
+		return scaleToDpi;
+	}
+
+	/**
+	 * Returns the box images are scaled down to fit or {@code null}.
+	 */
+	public Rectangle getScaleToBox() {
+		return copy(scaleToBox);
+	}
+
+	/**
+	 * Returns the page images are placed to or {@code null} if page takes the size of the image.
+	 */
+	public Rectangle getScaleToPage() {
+		return copy(scaleToPage);
+	}
+
+	public Gravity getGravity() {
+		return gravity;
+	}
+
+	public int getBorder() {
+		return border;
+	}
+
+	/**
+	 * Returns the resolution images are resampled down to if it is exceeded on the page, or {@code 0} if images are
+	 * kept as they are.
+	 */
+	public int getMaxDpi() {
+		return maxDpi;
+	}
+
+	/**
+	 * Returns the pattern of names of embedded fonts to be removed or {@code null}.
+	 */
+	public Pattern getFontNameFilter() {
+		return fontNameFilter;
+	}
+
+	/**
+	 * Returns the maximum number of parsed objects kept in memory per PDF input or {@code 0} if inputs are read
+	 * fully.
+	 */
+	public int getMaxCachedObjects() {
+		return maxCachedObjects;
+	}
+
+	public CopyStrategy getCopyStrategy() {
+		return copyStrategy;
+	}
+
+	/**
+	 * Returns the maximum number of streams remembered by {@link CopyStrategy#bounded} strategy.
+	 */
+	public int getDedupCacheSize() {
+		return dedupCacheSize;
+	}
+
+	/**
+	 * Returns the size in bytes of the smallest stream considered by {@link CopyStrategy#bounded} strategy.
+	 */
+	public int getDedupMinStreamSize() {
+		return dedupMinStreamSize;
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+
+	/**
+	 * Returns {@code true} if objects other than streams are packed into compressed object streams and the
+	 * cross-reference table is written as a stream (PDF 1.5).
+	 */
+	public boolean isObjectStreams() {
+		return objectStreams;
+	}
+
+	/**
+	 * Returns {@code true} if the output is linearized, so that viewers can display the first page before the whole
+	 * file is downloaded.
+	 */
+	public boolean isLinearize() {
+		return linearize;
+	}
+
+	private static Rectangle copy(Rectangle rectangle) {
+		return rectangle == null ? null : new Rectangle(rectangle);
+	}
+
+	public static final class Builder {
+
+		private boolean		scaleToDpi;
+
+		private Rectangle	scaleToBox;
+
+		private Rectangle	scaleToPage;
+
+		private Gravity		gravity;
+
+		private int			border;
+
+		private int			maxDpi;
+
+		private Pattern		fontNameFilter;
+
+		private int			maxCachedObjects;
+
+		private CopyStrategy	copyStrategy		= CopyStrategy.smart;
+
+		private int			dedupCacheSize		= DEFAULT_DEDUP_CACHE_SIZE;
+
+		private int			dedupMinStreamSize	= DEFAULT_DEDUP_MIN_STREAM_SIZE;
+
+		private FsyncPolicy	fsyncPolicy			= FsyncPolicy.none;
+
+		private boolean		objectStreams;
+
+		private boolean		linearize;
+
+		private Builder() {
+		}
+
+		public Builder scaleToDpi(boolean scaleToDpi) {
+			this.scaleToDpi = scaleToDpi;
+			return this;
+		}
+
+		public Builder scaleToBox(Rectangle scaleToBox) {
+			this.scaleToBox = copy(scaleToBox);
+			return this;
+		}
+
+		/**
+		 * Sets the box given as page name (i.e. {@code A4}) or dimension (i.e. {@code 180x20}).
+		 */
+		public Builder scaleToBox(String scaleToBox) {
+			int pos = scaleToBox.indexOf('x');
+
+			if (pos > 0) {
+				// Throws NumberFormatException which is IllegalArgumentException:
+				return scaleToBox(new Rectangle(Integer.parseInt(scaleToBox.substring(0, pos)),
+				            Integer.parseInt(scaleToBox.substring(pos + 1))));
+			}
+
+			try {
+				return scaleToBox(PageSize.getRectangle(scaleToBox));
+			}
+			catch (RuntimeException e) {
+				throw new IllegalArgumentException(e.getMessage(), e);
+			}
+		}
+
+		public Builder scaleToPage(Rectangle scaleToPage) {
+			this.scaleToPage = copy(scaleToPage);
+			return this;
+		}
+
+		/**
+		 * Sets the page given by the number of A-series format (i.e. {@code 4} for A4).
+		 */
+		public Builder scaleToPage(String aSeriesNumber) {
+			try {
+				return scaleToPage(PageSize.getRectangle("A" + aSeriesNumber));
+			}
+			catch (RuntimeException e) {
+				throw new IllegalArgumentException(e.getMessage(), e);
+			}
+		}
+
+		public Builder gravity(Gravity gravity) {
+			this.gravity = gravity;
+			return this;
+		}
+
+		/**
+		 * Sets the gravity given by name or alias (i.e. {@code topLeft} or {@code northWest}).
+		 */
+		public Builder gravity(String gravity) {
+			Gravity g = Gravity.forName(gravity);
+
+			if (g == null) {
+				throw new IllegalArgumentException("Unknown gravity value " + gravity);
+			}
+
+			return gravity(g);
+		}
+
+		public Builder border(int border) {
+			if (border < 0) {
+				throw new IllegalArgumentException("Border should be a non-negative integer but was " + border + ".");
+			}
+
+			this.border = border;
+			return this;
+		}
+
+		/**
+		 * Resamples images which resolution on the page (after they are scaled and placed) exceeds given DPI.
+		 */
+		public Builder maxDpi(int maxDpi) {
+			if (maxDpi <= 0) {
+				throw new IllegalArgumentException("Max DPI should be a positive integer but was " + maxDpi + ".");
+			}
+
+			this.maxDpi = maxDpi;
+			return this;
+		}
+
+		public Builder removeFonts(Pattern fontNameFilter) {
+			this.fontNameFilter = fontNameFilter;
+			return this;
+		}
+
+		/**
+		 * Sets the regular expression of names of embedded fonts to be removed. Empty expression removes all fonts.
+		 */
+		public Builder removeFonts(String fontNameFilter) {
+			if (fontNameFilter.isEmpty()) {
+				// Effectively remove all embedded fonts:
+				return removeFonts(Pattern.compile(".*"));
+			}
+
+			try {
+				return removeFonts(Pattern.compile(fontNameFilter));
+			}
+			catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Remove font option value should be a valid regular expression.",
+				            e);
+			}
+		}
+
+		/**
+		 * Reads PDF inputs partially keeping at most given number of parsed objects in memory. Inputs shared by
+		 * several merges are always read fully.
+		 */
+		public Builder lowMemory(int maxCachedObjects) {
+			if (maxCachedObjects <= 0) {
+				throw new IllegalArgumentException(
+				            "Number of cached objects should be a positive integer but was " + maxCachedObjects + ".");
+			}
+
+			this.maxCachedObjects = maxCachedObjects;
+			return this;
+		}
+
+		public Builder copyStrategy(CopyStrategy copyStrategy) {
+			this.copyStrategy = copyStrategy;
+			return this;
+		}
+
+		/**
+		 * Sets the copy strategy given as {@code plain}, {@code smart} or {@code bounded[:streams[:bytes]]} where
+		 * {@code streams} is the size of the cache and {@code bytes} is the minimal size of the stream.
+		 */
+		public Builder copyStrategy(String spec) {
+			String[] parts = spec.split(":", -1);
+			CopyStrategy strategy = CopyStrategy.forName(parts[0]);
+
+			if (strategy == null || parts.length > 3 || parts.length > 1 && strategy != CopyStrategy.bounded) {
+				throw new IllegalArgumentException("Unknown copy strategy " + spec);
+			}
+
+			copyStrategy(strategy);
+
+			if (parts.length > 1) {
+				// Throws NumberFormatException which is IllegalArgumentException:
+				dedupCache(Integer.parseInt(parts[1]),
+				            parts.length > 2 ? Integer.parseInt(parts[2]) : DEFAULT_DEDUP_MIN_STREAM_SIZE);
+			}
+
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of streams remembered by {@link CopyStrategy#bounded} strategy and the size of the
+		 * smallest stream it considers.
+		 */
+		public Builder dedupCache(int maxStreams, int minStreamSize) {
+			if (maxStreams <= 0 || minStreamSize < 0) {
+				throw new IllegalArgumentException("Dedup cache should have positive size and non-negative minimal "
+				            + "stream size but was " + maxStreams + " and " + minStreamSize + ".");
+			}
+
+			this.dedupCacheSize = maxStreams;
+			this.dedupMinStreamSize = minStreamSize;
+			return this;
+		}
+
+		public Builder fsync(FsyncPolicy fsyncPolicy) {
+			this.fsyncPolicy = fsyncPolicy;
+			return this;
+		}
+
+		/**
+		 * Sets the fsync policy given by name (i.e. {@code file}).
+		 */
+		public Builder fsync(String fsyncPolicy) {
+			FsyncPolicy p = FsyncPolicy.forName(fsyncPolicy);
+
+			if (p == null) {
+				throw new IllegalArgumentException("Unknown fsync policy " + fsyncPolicy);
+			}
+
+			return fsync(p);
+		}
+
+		public Builder objectStreams(boolean objectStreams) {
+			this.objectStreams = objectStreams;
+			return this;
+		}
+
+		public Builder linearize(boolean linearize) {
+			this.linearize = linearize;
+			return this;
+		}
+
+		public MergeOptions build() {
+			if (gravity != null && scaleToPage == null) {
+				throw new IllegalArgumentException("Gravity is only applicable when page is defined");
+			}
+
+			if (objectStreams && linearize) {
+				throw new IllegalArgumentException("Object streams cannot be combined with linearization");
+			}
+
+			return new MergeOptions(this);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.github.merge2pdf;
+
+/**
+ * Counters collected during the merge of one output file: time spent in each stage (in nanoseconds) and the size of
+ * the output. Instance is used by one thread at a time.
+ */
+public class MergeStats {
+
+	/**
+	 * Time spent resolving and checking inputs.
+	 */
+	long	scanNanos;
+
+	/**
+	 * Time spent opening and preparing input PDFs.
+	 */
+	long	parseNanos;
+
+	/**
+	 * Time spent converting images to PDF pages.
+	 */
+	long	imageNanos;
+
+	/**
+	 * Time spent copying pages to the output.
+	 */
+	long	copyNanos;
+
+	/**
+	 * Time spent finishing the output.
+	 */
+	long	writeNanos;
+
+	int		inputs;
+
+	long	inputBytes;
+
+	int		outputPages;
+
+	long	outputBytes;
+}
@@ -3,21 +3,24 @@ package com.github.merge2pdf;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
-import com.itextpdf.text.Document;
 import com.itextpdf.text.DocumentException;
-import com.itextpdf.text.Image;
-import com.itextpdf.text.PageSize;
-import com.itextpdf.text.Rectangle;
-import com.itextpdf.text.io.RandomAccessSource;
-import com.itextpdf.text.io.RandomAccessSourceFactory;
 import com.itextpdf.text.pdf.*;
-import com.itextpdf.text.pdf.codec.TiffImage;
 import com.itextpdf.text.pdf.parser.PdfImageObject;
 
 import org.apache.commons.cli.CommandLine;
@@ -26,7 +29,6 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,9 +43,9 @@ import com.github.merge2pdf.FindPdfs;
 public class MergeToPdf {
 
 	/**
-	 * PDF considers page sizes at 72 dpi, see {@link PageSize}.
+	 * Default number of leading file name characters which form the patient MRN.
 	 */
-	static final int			PDF_DPI			  = 72;
+	static final int			MRN_LENGTH		  = 8;
 
 	private static final Log	logger			  = LogFactory.getLog(MergeToPdf.class);
 
@@ -51,7 +53,7 @@ public class MergeToPdf {
 	            + "/merge2pdf/pom.properties";
 
 	enum Opt {
-		based, from, to, merge, extract, dpi, A, gravity, scale, border, removeFont("remove-font"), prefix, version, help;
+		based, from, to, mrnPattern("mrn-pattern"), days, threads, imageThreads("image-threads"), lowMemory("low-memory"), copy, fsync, scanThreads("scan-threads"), dedup, incremental, watch, index, report, merge, extract, dpi, maxDpi("max-dpi"), A, gravity, scale, border, removeFont("remove-font"), objectStreams("object-streams"), linearize, prefix, version, help;
 
 		private final String value;
 
@@ -68,24 +70,9 @@ public class MergeToPdf {
 		}
 	}
 
-	enum Gravity {
-		center("centre"), top("north"), topRight("northEast"), right("east"), bottomRight("southEast"), bottom(
-		            "south"), bottomLeft("southWest"), left("west"), topLeft("northWest");
-
-		private final String alias;
-
-		Gravity(String alias) {
-			this.alias = alias;
-		}
-
-		public String alias() {
-			return alias;
-		}
-	}
-
 	enum ExitCode {
 		OK(0), VERSION(1), HELP(2), INVALID_OPTION(10), MISSING_REQUIRED_OPTION(11), ILLEGAL_OPTION_COMBINATION(
-		            12), NOT_ENOUGH_FILES(13);
+		            12), NOT_ENOUGH_FILES(13), MERGE_FAILED(14);
 
 		private final int exitCode;
 
@@ -111,9 +98,37 @@ public class MergeToPdf {
 		options.addOption("ba", Opt.based.value(), true, "Merge files with a folder as reference");
 		options.addOption("f", Opt.from.value(), false, "get files from source folder");
 		options.addOption("t", Opt.to.value(), true, "Merge files to goal folder");
+		options.addOption("k", Opt.mrnPattern.value(), true,
+		            "Regular expression which extracts MRN from file name (default: first 8 characters)");
+		options.addOption("w", Opt.days.value(), true,
+		            "Number of days (including today) to look back in source folders (default: "
+		                        + FindPdfs.DEFAULT_LOOKBACK_DAYS + ")");
+		options.addOption("T", Opt.threads.value(), true, "Number of patients merged in parallel (default: 1)");
+		options.addOption("I", Opt.imageThreads.value(), true,
+		            "Number of images converted in parallel ahead of the merge (default: 1)");
+		options.addOption("L", Opt.lowMemory.value(), true,
+		            "Read PDF inputs partially keeping at most given number of parsed objects in memory");
+		options.addOption("c", Opt.copy.value(), true,
+		            "How PDF objects are copied: plain, smart (default) or bounded[:streams[:bytes]]");
+		options.addOption("F", Opt.fsync.value(), true,
+		            "Force written output to the storage before it is published: none (default), file or full");
+		options.addOption("S", Opt.scanThreads.value(), true,
+		            "Number of directories listed in parallel when scanning folders (default: 1)");
+		options.addOption("D", Opt.dedup.value(), false,
+		            "Skip source files which content is identical to another source file of the same patient");
+		options.addOption("i", Opt.incremental.value(), false,
+		            "Skip patients which inputs did not change since the last successful merge");
+		options.addOption("W", Opt.watch.value(), true,
+		            "Keep running and merge patients as their files arrive after given quiet period in milliseconds");
+		options.addOption("x", Opt.index.value(), true,
+		            "Keep directory listings in given file and list only modified directories on the next run");
+		options.addOption("R", Opt.report.value(), true,
+		            "Write CSV report with per-patient page and byte counts and stage timings to given file");
 		options.addOption("m", Opt.merge.value(), false, "Merge given input files into destination PDF");
 		options.addOption("e", Opt.extract.value(), false, "Extact images from given file");
 		options.addOption("d", Opt.dpi.value(), false, "Respect image DPI when scaling up/down");
+		options.addOption("M", Opt.maxDpi.value(), true,
+		            "Resample images which resolution on the page exceeds given DPI i.e. -M150 (default: keep images)");
 		options.addOption("s", Opt.scale.value(), true,
 		            "Scale down (if necessary) image to the box given as page i.e. A4 or dimension i.e. 180x20");
 		options.addOption(Option.builder(Opt.A.value()).hasArg().type(Integer.class)
@@ -124,6 +139,10 @@ public class MergeToPdf {
 		            "Add given border in pixels to each page when page is provided i.e. -b10");
 		options.addOption("r", Opt.removeFont.value(), true,
 		            "Remove given embedded font(s) i.e. -rArial or remove all fonts i.e. -r \"\"");
+		options.addOption("O", Opt.objectStreams.value(), false,
+		            "Pack objects into compressed object streams with cross-reference stream (PDF 1.5)");
+		options.addOption("l", Opt.linearize.value(), false,
+		            "Linearize the output, so that the first page is displayed before the whole file is downloaded");
 		options.addOption("p", Opt.prefix.value(), true, "Output directory and/or file prefix");
 		options.addOption("v", Opt.version.value(), false, "Print version and exit");
 		options.addOption("h", Opt.help.value(), false, "Print help and exit");
@@ -163,9 +182,9 @@ public class MergeToPdf {
 			helpFormatter.setSyntaxPrefix("Usage:");
 			helpFormatter.setOptionComparator(null);
 			helpFormatter.printHelp(helpFormatter.getNewLine() + "merge2pdf --" + Opt.merge.value() + " [--"
-			            + Opt.dpi.value() + "|--" + Opt.scale.value() + " dim|-" + Opt.A.value() + "num|--"
-			            + Opt.border.value() + " num|--" + Opt.removeFont.value()
-			            + " pattern] one.pdf [two.jpg three.png ...] out.pdf" + helpFormatter.getNewLine()
+			            + Opt.dpi.value() + "|--" + Opt.maxDpi.value() + " num|--" + Opt.scale.value() + " dim|-" + Opt.A.value() + "num|--"
+			            + Opt.border.value() + " num|--" + Opt.removeFont.value() + " pattern|--"
+			            + Opt.objectStreams.value() + "|--" + Opt.linearize.value() + "] one.pdf[pages] [two.jpg three.png ...] out.pdf" + helpFormatter.getNewLine()
 						+ "merge2pdf --" + Opt.based.value() + " [主检目录]" + helpFormatter.getNewLine()
 						+ "merge2pdf --" + Opt.from.value() + " [检验 心电图 超声 肺功能 胃肠镜]" + helpFormatter.getNewLine()
 						+ "merge2pdf --" + Opt.to.value() + " [体检目录]" + helpFormatter.getNewLine()
@@ -195,8 +214,32 @@ public class MergeToPdf {
 				            + "\" options should be provided.");
 				return ExitCode.ILLEGAL_OPTION_COMBINATION;
 			}
-			List<String> list = new ArrayList<>();
-			return merge(cli,list);
+			List<String> files = cli.getArgList();
+
+			if (files.size() < 2) {
+				logger.error("At least two files are required.");
+				return ExitCode.NOT_ENOUGH_FILES;
+			}
+
+			MergeOptions mergeOptions;
+			int imageThreads;
+			try {
+				mergeOptions = mergeOptions(cli);
+				imageThreads = imageThreads(cli);
+
+				for (String input : files.subList(0, files.size() - 1)) {
+					PageSelection.of(input);
+				}
+			}
+			catch (IllegalArgumentException e) {
+				logger.error(e.getMessage());
+				return ExitCode.INVALID_OPTION;
+			}
+
+			try (MergeEngine engine = new MergeEngine(mergeOptions, imageThreads)) {
+				engine.merge(files.subList(0, files.size() - 1), files.get(files.size() - 1));
+			}
+			return ExitCode.OK;
 		}
 
 
@@ -211,138 +254,387 @@ public class MergeToPdf {
 	 * @return 返回成功失败标志
 	 */
 	public static ExitCode compareFilenames(CommandLine cli){
-		String MRN,subMRN;
 		List<String> fromPath = cli.getArgList();
 		String basePath = cli.getOptionValue(Opt.based.value());
+
+		Function<String, String> mrnExtractor = FindPdfs.prefixKey(MRN_LENGTH);
+		String mrnSpec = "prefix:" + MRN_LENGTH;
+
+		if (cli.hasOption(Opt.mrnPattern.value())) {
+			try {
+				mrnExtractor = FindPdfs.patternKey(Pattern.compile(cli.getOptionValue(Opt.mrnPattern.value())));
+				mrnSpec = "pattern:" + cli.getOptionValue(Opt.mrnPattern.value());
+			}
+			catch (PatternSyntaxException e) {
+				logger.error("MRN pattern option value should be a valid regular expression.");
+				return ExitCode.INVALID_OPTION;
+			}
+		}
+
+		int days = FindPdfs.DEFAULT_LOOKBACK_DAYS;
+
+		if (cli.hasOption(Opt.days.value())) {
+			String daysOptionValue = cli.getOptionValue(Opt.days.value());
+			try {
+				days = Integer.parseInt(daysOptionValue);
+			}
+			catch (NumberFormatException e) {
+				days = -1;
+			}
+
+			if (days <= 0) {
+				logger.error("Days option should be a positive integer but was " + daysOptionValue + ".");
+				return ExitCode.INVALID_OPTION;
+			}
+		}
+
+		int threads = 1;
+
+		if (cli.hasOption(Opt.threads.value())) {
+			String threadsOptionValue = cli.getOptionValue(Opt.threads.value());
+			try {
+				threads = Integer.parseInt(threadsOptionValue);
+			}
+			catch (NumberFormatException e) {
+				threads = -1;
+			}
+
+			if (threads <= 0) {
+				logger.error("Threads option should be a positive integer but was " + threadsOptionValue + ".");
+				return ExitCode.INVALID_OPTION;
+			}
+		}
+
+		int scanThreads = 1;
+
+		if (cli.hasOption(Opt.scanThreads.value())) {
+			String scanThreadsOptionValue = cli.getOptionValue(Opt.scanThreads.value());
+			try {
+				scanThreads = Integer.parseInt(scanThreadsOptionValue);
+			}
+			catch (NumberFormatException e) {
+				scanThreads = -1;
+			}
+
+			if (scanThreads <= 0) {
+				logger.error("Scan threads option should be a positive integer but was " + scanThreadsOptionValue
+				            + ".");
+				return ExitCode.INVALID_OPTION;
+			}
+		}
+
+		long watchQuietMillis = -1;
+
+		if (cli.hasOption(Opt.watch.value())) {
+			String watchOptionValue = cli.getOptionValue(Opt.watch.value());
+			try {
+				watchQuietMillis = Long.parseLong(watchOptionValue);
+			}
+			catch (NumberFormatException e) {
+				watchQuietMillis = -1;
+			}
+
+			if (watchQuietMillis < 0) {
+				logger.error("Watch option should be a non-negative number of milliseconds but was "
+				            + watchOptionValue + ".");
+				return ExitCode.INVALID_OPTION;
+			}
+		}
+
+		MergeOptions mergeOptions;
+		int imageThreads;
 		try {
-			List<File> baseFiles = FindPdfs.findToPaths(basePath);
+			mergeOptions = mergeOptions(cli);
+			imageThreads = imageThreads(cli);
+		}
+		catch (IllegalArgumentException e) {
+			logger.error(e.getMessage());
+			return ExitCode.INVALID_OPTION;
+		}
+
+		DirectoryIndex directoryIndex = null;
+
+		if (cli.hasOption(Opt.index.value())) {
+			directoryIndex = DirectoryIndex.load(new File(cli.getOptionValue(Opt.index.value())), mrnSpec,
+			            mrnExtractor);
+		}
+
+		List<List<String>> jobs = new ArrayList<>();
+		BatchReport report = cli.hasOption(Opt.report.value()) ? new BatchReport(mrnExtractor) : null;
+		long scanStart = System.nanoTime();
+		long scanStartMillis = System.currentTimeMillis();
+
+		try {
+			List<File> baseFiles = FindPdfs.findToPaths(basePath, directoryIndex, scanThreads);
+			// 来源文件夹只扫描一次，按MRN建立索引:
+			Map<String, List<File>> fromIndex = FindPdfs.indexFromPaths(fromPath, days, mrnExtractor,
+			            directoryIndex, scanThreads);
+
+			if (directoryIndex != null) {
+				logger.info("Listed " + directoryIndex.getListedDirectories() + " modified directories");
+				directoryIndex.save();
+			}
 			//目标文件夹
 			for(File f : baseFiles) {
-				List<String> compareFiles = new ArrayList<>();
-				String goalFileName = f.getName();
-				MRN = goalFileName.substring(0,8);
-				compareFiles.add(f.toString());
-
-				//去除文件同源文件夹下目录比较
-				for (String folder : fromPath) {
-					List<File> fromFiles = FindPdfs.findFromPaths(folder);
-					for(File subf : fromFiles) {
-						String subfileName = subf.getName();
-						subMRN = subfileName.substring(0,8);
-						if(MRN.equals(subMRN)) {
-							compareFiles.add(subf.toString());
-						}
-					}
-				}
-				boolean hasTo = cli.hasOption(Opt.to.value());
-				String separator = System.getProperty("file.separator");
-				if(hasTo) {
-					Date now = new Date();
-					SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-					String goalPath = cli.getOptionValue(Opt.to.value());
-					compareFiles.add(basePath + separator + "封面未删.pdf");
-					compareFiles.add(goalPath + separator + dateFormat.format(now) + separator + f.getName()); //拼接目标文件
-				} else {
-					compareFiles.add(basePath + separator + "封面未删.pdf");
-					compareFiles.add(f.toString().replace("主检","体检"));
+				String MRN = mrnExtractor.apply(f.getName());
+				if (MRN == null) {
+					logger.warn("Cannot extract MRN from " + f + ", skipping");
+					continue;
 				}
 
-				merge(cli,compareFiles);
+				jobs.add(createJob(cli, f, fromIndex.getOrDefault(MRN, Collections.emptyList())));
 			}
-		} catch (IOException | DocumentException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 			logger.error(e.getMessage());
 			return ExitCode.INVALID_OPTION;
 		}
-		return ExitCode.OK;
+
+		if (report != null) {
+			report.setFolderScanNanos(System.nanoTime() - scanStart);
+		}
+
+		try (MergeEngine engine = new MergeEngine(mergeOptions, imageThreads)) {
+			ExitCode exitCode = mergeAll(cli, engine, jobs, threads, cli.hasOption(Opt.incremental.value()), report);
+
+			if (report != null) {
+				report.setElapsedNanos(System.nanoTime() - scanStart);
+				File reportFile = new File(cli.getOptionValue(Opt.report.value()));
+				try {
+					report.write(reportFile);
+				}
+				catch (IOException e) {
+					logger.error("Failed to write report " + reportFile + ": " + e.getMessage());
+					if (exitCode == ExitCode.OK) {
+						exitCode = ExitCode.MERGE_FAILED;
+					}
+				}
+			}
+
+			if (watchQuietMillis >= 0) {
+				try (FolderWatcher watcher = new FolderWatcher(cli, engine, days, mrnExtractor, directoryIndex,
+				            threads, scanThreads, watchQuietMillis)) {
+					watcher.run(scanStartMillis);
+				}
+				catch (IOException e) {
+					logger.error(e.getMessage(), e);
+					return ExitCode.MERGE_FAILED;
+				}
+			}
+
+			return exitCode;
+		}
 	}
-	private static ExitCode merge(CommandLine cli,List<String> compareFiles) throws DocumentException, IOException {
-		List<String> files;
-		if (compareFiles != null && !compareFiles.isEmpty()) {
-			files = compareFiles;
+
+	/**
+	 * Creates the list of files to merge for given base file: the base file, given source files, the cover and the
+	 * output file. With {@link Opt#dedup} the source files with identical content are given only once.
+	 */
+	static List<String> createJob(CommandLine cli, File baseFile, List<File> fromFiles) {
+		String separator = System.getProperty("file.separator");
+
+		if (cli.hasOption(Opt.dedup.value()) && fromFiles.size() > 1) {
+			fromFiles = DuplicateFiles.removeDuplicates(fromFiles);
+		}
+
+		List<String> compareFiles = new ArrayList<>();
+		// The last page of the base file is its cover which is replaced by the common one:
+		compareFiles.add(baseFile.toString() + "[!last]");
+		for (File subf : fromFiles) {
+			compareFiles.add(subf.toString());
+		}
+		compareFiles.add(coverFile(cli));
+		if (cli.hasOption(Opt.to.value())) {
+			SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+			compareFiles.add(cli.getOptionValue(Opt.to.value()) + separator + dateFormat.format(new Date())
+			            + separator + baseFile.getName()); //拼接目标文件
 		} else {
-			files = cli.getArgList();
+			compareFiles.add(baseFile.toString().replace("主检","体检"));
 		}
 
+		return compareFiles;
+	}
 
-		if (files.size() < 2) {
-			logger.error("At least two files are required.");
-			return ExitCode.NOT_ENOUGH_FILES;
-		}
+	/**
+	 * Returns the cover which is appended to every patient.
+	 */
+	static String coverFile(CommandLine cli) {
+		return cli.getOptionValue(Opt.based.value()) + System.getProperty("file.separator") + "封面未删.pdf";
+	}
 
-		// If page is defined, images are scaled to that page size:
-		boolean scaleToDpi = cli.hasOption(Opt.dpi.value());
+	/**
+	 * Runs given merge jobs on a pool of given number of threads. Jobs which write to the same output file are run
+	 * one after another in the given order. A failed job is logged and does not stop the others. In incremental mode
+	 * the jobs which inputs did not change since the last successful merge (as recorded in {@link Journal} of the
+	 * output directory) are skipped. PDFs which are input of several jobs are parsed only once, see
+	 * {@link SharedPdfs}. If report is given, the outcome and statistics of each job are added to it.
+	 * 
+	 * @return the exit code of the first failed job (in the given order) or {@link ExitCode#OK}
+	 */
+	private static ExitCode mergeAll(CommandLine cli, MergeEngine engine, List<List<String>> jobs, int threads,
+	            boolean incremental, BatchReport report) {
+		// Job indexes are kept so that the report follows the order of the jobs:
+		Map<String, List<Integer>> jobsByOutput = new LinkedHashMap<>();
+		for (int i = 0; i < jobs.size(); i++) {
+			List<String> job = jobs.get(i);
+			jobsByOutput.computeIfAbsent(job.get(job.size() - 1), k -> new ArrayList<>()).add(i);
+		}
 
-		Rectangle scaleToBox = null;
+		Map<File, Journal> journals = new HashMap<>();
+		String settings = mergeSettings(cli);
+		SharedPdfs sharedPdfs = SharedPdfs.of(jobs);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
 
-		if (cli.hasOption(Opt.scale.value())) {
-			String scaleToBoxValue = cli.getOptionValue(Opt.scale.value());
+		try {
+			List<Future<ExitCode>> results = new ArrayList<>();
 
-			int pos = scaleToBoxValue.indexOf('x');
+			for (Map.Entry<String, List<Integer>> entry : jobsByOutput.entrySet()) {
+				Journal journal = null;
 
-			if (pos > 0) {
-				try {
-					scaleToBox = new Rectangle(Integer.parseInt(scaleToBoxValue.substring(0, pos)),
-					            Integer.parseInt(scaleToBoxValue.substring(pos + 1)));
+				if (incremental) {
+					File directory = new File(entry.getKey()).getAbsoluteFile().getParentFile();
+					journal = journals.get(directory);
+					if (journal == null) {
+						journal = Journal.open(directory);
+						journals.put(directory, journal);
+					}
 				}
-				catch (NumberFormatException e) {
-					logger.error(e.getMessage());
-					return ExitCode.INVALID_OPTION;
+
+				Journal outputJournal = journal;
+				List<Integer> outputJobs = entry.getValue();
+
+				results.add(executor.submit(() -> {
+					ExitCode exitCode = ExitCode.OK;
+					for (int jobIndex : outputJobs) {
+						ExitCode jobExitCode = mergeJob(engine, jobs.get(jobIndex), outputJournal, settings,
+						            sharedPdfs, report, jobIndex);
+						if (exitCode == ExitCode.OK) {
+							exitCode = jobExitCode;
+						}
+					}
+					return exitCode;
+				}));
+			}
+
+			ExitCode exitCode = ExitCode.OK;
+
+			for (Future<ExitCode> result : results) {
+				ExitCode jobExitCode = result.get();
+				if (exitCode == ExitCode.OK) {
+					exitCode = jobExitCode;
 				}
 			}
-			else {
+
+			return exitCode;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while waiting for merge jobs to complete");
+			return ExitCode.MERGE_FAILED;
+		}
+		catch (ExecutionException e) {
+			// Should not happen as all exceptions are handled by mergeJob():
+			logger.error(e.getMessage(), e);
+			return ExitCode.MERGE_FAILED;
+		}
+		catch (IOException e) {
+			logger.error(e.getMessage(), e);
+			return ExitCode.MERGE_FAILED;
+		}
+		finally {
+			executor.shutdownNow();
+
+			for (Journal journal : journals.values()) {
 				try {
-					scaleToBox = PageSize.getRectangle(scaleToBoxValue);
+					journal.close();
 				}
-				catch (RuntimeException e) {
-					logger.error(e.getMessage());
-					return ExitCode.INVALID_OPTION;
+				catch (IOException e) {
+					logger.warn(e.getMessage());
 				}
 			}
 		}
+	}
 
-		Rectangle scaleToPage = null;
+	/**
+	 * Merges given files isolating the failure to given job. If journal is given, the merge is skipped when inputs
+	 * did not change since the last successful merge, and successful merge is recorded. If report is given, the
+	 * outcome of the job is added to it under given job index.
+	 */
+	static ExitCode mergeJob(MergeEngine engine, List<String> files, Journal journal, String settings,
+	            SharedPdfs sharedPdfs, BatchReport report, int jobIndex) {
+		File output = new File(files.get(files.size() - 1));
+		List<String> inputs = files.subList(0, files.size() - 1);
+		MergeStats stats = new MergeStats();
+		long start = System.nanoTime();
+		BatchReport.Status status = BatchReport.Status.failed;
 
-		if (cli.hasOption(Opt.A.value())) {
-			try {
-				scaleToPage = PageSize.getRectangle("A" + cli.getOptionValue(Opt.A.value()));
-			}
-			catch (RuntimeException e) {
-				logger.error(e.getMessage());
-				return ExitCode.INVALID_OPTION;
+		try {
+			String signature = null;
+
+			stats.inputs = inputs.size();
+			for (String input : inputs) {
+				stats.inputBytes += new File(PageSelection.fileOf(input)).length();
 			}
-		}
 
-		Gravity gravity = null;
+			if (journal != null) {
+				signature = Journal.signature(inputs, settings);
+			}
 
-		if (cli.hasOption(Opt.gravity.value())) {
-			String gravityValue = cli.getOptionValue(Opt.gravity.value());
+			stats.scanNanos = System.nanoTime() - start;
 
-			for (Gravity g : Gravity.values()) {
-				if (g.name().equalsIgnoreCase(gravityValue) || g.alias().equalsIgnoreCase(gravityValue)) {
-					gravity = g;
-					break;
-				}
+			if (journal != null && journal.isUpToDate(output, signature)) {
+				logger.info("Skipping " + output + " as inputs have not changed");
+				status = BatchReport.Status.skipped;
+				return ExitCode.OK;
 			}
 
-			if (gravity == null) {
-				logger.error("Unknown gravity value " + gravityValue);
-				return ExitCode.INVALID_OPTION;
+			engine.merge(inputs, output.getPath(), sharedPdfs, stats);
+
+			stats.outputBytes = output.length();
+			status = BatchReport.Status.merged;
+
+			if (journal != null) {
+				journal.record(output, signature);
 			}
 
-			if (scaleToPage == null) {
-				logger.error("Gravity is only applicable when page is defined");
-				return ExitCode.INVALID_OPTION;
+			return ExitCode.OK;
+		}
+		catch (IOException | DocumentException | RuntimeException e) {
+			logger.error("Failed to merge " + output + ": " + e.getMessage(), e);
+			return ExitCode.MERGE_FAILED;
+		}
+		finally {
+			if (report != null) {
+				report.add(jobIndex, files, status, stats, System.nanoTime() - start);
 			}
 		}
-		else {
-			gravity = Gravity.center;
+	}
+
+	/**
+	 * Creates merge options from given command line.
+	 * 
+	 * @throws IllegalArgumentException if some option has invalid value
+	 */
+	static MergeOptions mergeOptions(CommandLine cli) {
+		MergeOptions.Builder builder = MergeOptions.builder();
+
+		builder.scaleToDpi(cli.hasOption(Opt.dpi.value()));
+
+		if (cli.hasOption(Opt.scale.value())) {
+			builder.scaleToBox(cli.getOptionValue(Opt.scale.value()));
 		}
 
-		int border = 0;
+		if (cli.hasOption(Opt.A.value())) {
+			builder.scaleToPage(cli.getOptionValue(Opt.A.value()));
+		}
+
+		if (cli.hasOption(Opt.gravity.value())) {
+			builder.gravity(cli.getOptionValue(Opt.gravity.value()));
+		}
 
 		if (cli.hasOption(Opt.border.value())) {
 			String borderOptionValue = cli.getOptionValue(Opt.border.value());
+			int border;
 			try {
 				border = Integer.parseInt(borderOptionValue);
 			}
@@ -351,183 +643,123 @@ public class MergeToPdf {
 			}
 
 			if (border < 0) {
-				logger.error("Border option should be a non-negative integer but was " + borderOptionValue + ".");
-				return ExitCode.INVALID_OPTION;
+				throw new IllegalArgumentException(
+				            "Border option should be a non-negative integer but was " + borderOptionValue + ".");
 			}
-		}
-
-		Pattern fontNameFilter = null;
 
-		if (cli.hasOption(Opt.removeFont.value())) {
-			String removeFontOptionValue = cli.getOptionValue(Opt.removeFont.value());
+			builder.border(border);
+		}
 
-			if (!removeFontOptionValue.isEmpty()) {
-				try {
-					fontNameFilter = Pattern.compile(removeFontOptionValue);
-				}
-				catch (PatternSyntaxException e) {
-					logger.error("Remove fond option value should be a valid regular expression.");
-					return ExitCode.INVALID_OPTION;
-				}
+		if (cli.hasOption(Opt.maxDpi.value())) {
+			String maxDpiOptionValue = cli.getOptionValue(Opt.maxDpi.value());
+			int maxDpi;
+			try {
+				maxDpi = Integer.parseInt(maxDpiOptionValue);
+			}
+			catch (NumberFormatException e) {
+				maxDpi = -1;
 			}
-			else {
-				// Effectively remove all embedded fonts:
-				fontNameFilter = Pattern.compile(".*");
-			}
-		}
-
-		Document mergedDocument = new Document();
-		SplitPdfs split = new SplitPdfs();
-		String outFile = files.get(files.size()-1);
-		//FileOutputStream os = new FileOutputStream(files.get(files.size()-1));
-		FileOutputStream os = FileUtils.openOutputStream(new File(outFile));
-		PdfSmartCopy pdfCopyWriter = new PdfSmartCopy(mergedDocument, os);
-		mergedDocument.open();
-
-		//去除尾部封面
-		PdfReader inputPDF  = new PdfReader(files.get(0));
-		logger.info("Adding PDF " + files.get(0) + "...");
-		List<Integer> list=new ArrayList<>();
-		int start = 1;
-		int end = inputPDF.getNumberOfPages();
-		while (start < end) {   //删除最后一页
-			list.add(start);
-			start++;
-		}
-		pdfCopyWriter.addDocument(inputPDF,list);
-		inputPDF.close();
-
-		//for (String file : files.subList(0, files.size()-1)) {
-		//去头去尾
-		for (int a = 1 ; a < files.size()-1; a++) {
-			PdfReader reader;
-			String file = files.get(a);
-			if (file.toLowerCase().endsWith(".pdf")) {
-				logger.info("Adding PDF " + file + "...");
-				// Copy PDF document:
-				reader = new PdfReader(file);
-
-				if (fontNameFilter != null) {
-					for (int i = 1; i < reader.getXrefSize(); i++) {
-						unembedTTF(reader.getPdfObject(i), fontNameFilter);
-					}
-				}
 
-				// Removing unused objects will remove unused font file streams:
-				reader.removeUnusedObjects();
+			if (maxDpi <= 0) {
+				throw new IllegalArgumentException(
+				            "Max DPI option should be a positive integer but was " + maxDpiOptionValue + ".");
 			}
-			else {
-				logger.info("Adding image " + file + "...");
 
-				ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+			builder.maxDpi(maxDpi);
+		}
 
-				Document imageDocument = new Document();
-				PdfWriter.getInstance(imageDocument, byteStream);
+		if (cli.hasOption(Opt.removeFont.value())) {
+			builder.removeFonts(cli.getOptionValue(Opt.removeFont.value()));
+		}
 
-				imageDocument.open();
+		if (cli.hasOption(Opt.copy.value())) {
+			builder.copyStrategy(cli.getOptionValue(Opt.copy.value()));
+		}
 
-				List<Image> images = new ArrayList<>();
+		if (cli.hasOption(Opt.fsync.value())) {
+			builder.fsync(cli.getOptionValue(Opt.fsync.value()));
+		}
 
-				if (file.toLowerCase().endsWith(".tiff") || file.toLowerCase().endsWith(".tif")) {
-					// Read all pages from TIFF image:
-					// See also https://stackoverflow.com/questions/49414913/
-					RandomAccessSource source = new RandomAccessSourceFactory()
-					            .createBestSource(new RandomAccessFile(file, "r"));
-					try {
-						RandomAccessFileOrArray rafa = new RandomAccessFileOrArray(source);
-						int pages = TiffImage.getNumberOfPages(rafa);
-						for (int p = 1; p <= pages; p++) {
-							images.add(TiffImage.getTiffImage(rafa, p));
-						}
-					}
-					finally {
-						source.close();
-					}
-				}
-				else {
-					// Create single page with the dimensions as source image and no margins:
-					images.add(Image.getInstance(file));
-				}
+		builder.objectStreams(cli.hasOption(Opt.objectStreams.value()));
+		builder.linearize(cli.hasOption(Opt.linearize.value()));
 
-				for (Image image : images) {
-					// The image should be scaled according to DPI (if available) before it is placed to the page.
-					// See also https://stackoverflow.com/a/8245450/267197
-					if (scaleToDpi && image.getDpiX() > 0 && image.getDpiY() > 0
-					            && (image.getDpiX() != PDF_DPI || image.getDpiY() != PDF_DPI)) {
-						image.scalePercent(100f * PDF_DPI / image.getDpiX(), 100f * PDF_DPI / image.getDpiY());
-						logger.debug(String.format("Scaled image as to %d DPI (%.2f, %.2f) -> (%.2f, %.2f)",
-						            image.getDpiX(), image.getWidth(), image.getHeight(), image.getScaledWidth(),
-						            image.getScaledHeight()));
-					}
+		int maxCachedObjects = maxCachedObjects(cli);
+		if (maxCachedObjects > 0) {
+			builder.lowMemory(maxCachedObjects);
+		}
 
-					if (scaleToBox != null) {
-						scaleToBox(image, scaleToBox, 0);
-					}
+		return builder.build();
+	}
 
-					if (scaleToPage != null) {
-						Rectangle page = scaleToBox(image, scaleToPage, border);
-
-						imageDocument.setPageSize(page);
-
-						//FIXME: apply gravity
-						switch (gravity) {
-						case center:
-							image.setAbsolutePosition(page.getWidth() / 2 - image.getScaledWidth() / 2,
-							            page.getHeight() / 2 - image.getScaledHeight() / 2);
-							break;
-						case top:
-							image.setAbsolutePosition(page.getWidth() / 2 - image.getScaledWidth() / 2,
-							            page.getHeight() - image.getScaledHeight() - border);
-							break;
-						case topRight:
-							image.setAbsolutePosition(page.getWidth() - image.getScaledWidth() - border,
-							            page.getHeight() - image.getScaledHeight() - border);
-							break;
-						case right:
-							image.setAbsolutePosition(page.getWidth() - image.getScaledWidth() - border,
-							            page.getHeight() / 2 - image.getScaledHeight() / 2);
-							break;
-						case bottomRight:
-							image.setAbsolutePosition(page.getWidth() - image.getScaledWidth() - border, border);
-							break;
-						case bottom:
-							image.setAbsolutePosition(page.getWidth() / 2 - image.getScaledWidth() / 2, border);
-							break;
-						case bottomLeft:
-							image.setAbsolutePosition(border, border);
-							break;
-						case left:
-							image.setAbsolutePosition(border, page.getHeight() / 2 - image.getScaledHeight() / 2);
-							break;
-						case topLeft:
-							image.setAbsolutePosition(border, page.getHeight() - image.getScaledHeight() - border);
-							break;
-						}
-					}
-					else {
-						// The page could be later scaled to given page when it is printed by PDF viewer:
-						image.setAbsolutePosition(border, border);
-						imageDocument.setPageSize(new Rectangle(image.getScaledWidth() + border * 2,
-						            image.getScaledHeight() + border * 2));
-					}
+	/**
+	 * Returns the number of threads which convert images.
+	 * 
+	 * @throws IllegalArgumentException if option has invalid value
+	 */
+	static int imageThreads(CommandLine cli) {
+		if (!cli.hasOption(Opt.imageThreads.value())) {
+			return 1;
+		}
 
-					imageDocument.newPage();
-					imageDocument.add(image);
-				}
+		String imageThreadsOptionValue = cli.getOptionValue(Opt.imageThreads.value());
+		int imageThreads;
+		try {
+			imageThreads = Integer.parseInt(imageThreadsOptionValue);
+		}
+		catch (NumberFormatException e) {
+			imageThreads = -1;
+		}
 
-				imageDocument.close();
+		if (imageThreads <= 0) {
+			throw new IllegalArgumentException(
+			            "Image threads option should be a positive integer but was " + imageThreadsOptionValue + ".");
+		}
 
-				// Copy PDF document which is a sequence of pages each having one image:
-				reader = new PdfReader(byteStream.toByteArray());
-			}
+		return imageThreads;
+	}
 
-			pdfCopyWriter.addDocument(reader);
-			reader.close();
+	/**
+	 * Returns the maximum number of parsed objects kept in memory per PDF input or {@code 0} if inputs are read fully.
+	 * 
+	 * @throws IllegalArgumentException if option has invalid value
+	 */
+	static int maxCachedObjects(CommandLine cli) {
+		if (!cli.hasOption(Opt.lowMemory.value())) {
+			return 0;
 		}
 
-		mergedDocument.close();
+		String lowMemoryOptionValue = cli.getOptionValue(Opt.lowMemory.value());
+		int maxCachedObjects;
+		try {
+			maxCachedObjects = Integer.parseInt(lowMemoryOptionValue);
+		}
+		catch (NumberFormatException e) {
+			maxCachedObjects = -1;
+		}
 
-		return ExitCode.OK;
+		if (maxCachedObjects <= 0) {
+			throw new IllegalArgumentException(
+			            "Low memory option should be a positive integer but was " + lowMemoryOptionValue + ".");
+		}
+
+		return maxCachedObjects;
+	}
+
+	/**
+	 * Returns the values of the options which affect the merged output so that changing them invalidates
+	 * {@link Journal} entries.
+	 */
+	static String mergeSettings(CommandLine cli) {
+		StringBuilder sb = new StringBuilder();
+
+		for (Opt opt : EnumSet.of(Opt.dpi, Opt.maxDpi, Opt.A, Opt.gravity, Opt.scale, Opt.border, Opt.removeFont,
+		            Opt.objectStreams, Opt.linearize)) {
+			if (cli.hasOption(opt.value())) {
+				sb.append(opt.value()).append('=').append(cli.getOptionValue(opt.value())).append(';');
+			}
+		}
+
+		return sb.toString();
 	}
 
 	private static ExitCode extract(CommandLine cli) throws IOException {
@@ -551,8 +783,18 @@ public class MergeToPdf {
 			outputFilePrefix = FilenameUtils.getFullPath(inputFile) + FilenameUtils.getBaseName(inputFile);
 		}
 
+		int maxCachedObjects;
+		try {
+			maxCachedObjects = maxCachedObjects(cli);
+		}
+		catch (IllegalArgumentException e) {
+			logger.error(e.getMessage());
+			return ExitCode.INVALID_OPTION;
+		}
+
 		// Code is taken from https://developers.itextpdf.com/examples/image-examples-itext5/reduce-image
-		PdfReader reader = new PdfReader(inputFile);
+		PdfReader reader = maxCachedObjects > 0 ? new PartialPdfReader(inputFile, maxCachedObjects)
+		            : new PdfReader(inputFile);
 
 		int objectsNumber = reader.getXrefSize();
 		int imageIndex = 1;
@@ -580,84 +822,8 @@ public class MergeToPdf {
 			}
 		}
 
-		return ExitCode.OK;
-	}
-
-	/**
-	 * Scale down given image to given box..
-	 */
-	private static Rectangle scaleToBox(Image image, Rectangle box, int border) {
-		// If image does not fit the page after DPI and box scale (if requested), then scale it further down:
-		if (isImageNotFittingBox(image, box, border)) {
-			if (image.getScaledWidth() > image.getScaledHeight()) {
-				// Rotate the page by 90 degrees effectively changing portrait orientation to landscape and vice versa:
-				box = new Rectangle(box.getHeight(), box.getWidth());
-
-				if (isImageNotFittingBox(image, box, border)) {
-					image.scaleToFit(box.getWidth() - border * 2, box.getHeight() - border * 2);
-				}
-			}
-			else {
-				image.scaleToFit(box.getWidth() - border * 2, box.getHeight() - border * 2);
-			}
-		}
-
-		return box;
-	}
-
-	/**
-	 * Returns {@code true} if given image does not fit the given box including the given margin (border).
-	 */
-	private static boolean isImageNotFittingBox(Image image, Rectangle box, int border) {
-		return image.getScaledWidth() > box.getWidth() - border * 2
-		            || image.getScaledHeight() > box.getHeight() - border * 2;
-	}
-
-	/**
-	 * Processes a dictionary. In case of font dictionaries, the dictionary is processed. The code was taken from
-	 * <a href="https://itextpdf.com/en/resources/examples/itext-5/unembed-font">Unembed a font</a>.
-	 */
-	private static void unembedTTF(PdfObject pdfObject, Pattern fontNameFilter) {
-		// Ignore all dictionaries that aren't font dictionaries:
-		if (pdfObject == null || !pdfObject.isDictionary()) {
-			return;
-		}
-
-		PdfDictionary dict = (PdfDictionary) pdfObject;
-
-		if (!dict.isFont()) {
-			return;
-		}
-
-		PdfName baseFont = dict.getAsName(PdfName.BASEFONT);
-		// Remove leading "/" from font name:
-		String fontName = PdfName.decodeName(baseFont.toString()).substring(1);
-
-		// Check if a subset (i.e. "ZIGEYT+ComicSansMS") was used (in which case we remove the prefix):
-		int pos = fontName.indexOf('+');
-		if (pos > 0) {
-			fontName = fontName.substring(pos + 1);
-			baseFont = new PdfName(fontName);
-		}
+		reader.close();
 
-		if (dict.getAsDict(PdfName.FONTFILE2) != null) {
-			logger.warn("Font " + fontName + " is not TTF and hence not removed");
-			return;
-		}
-
-		if (!fontNameFilter.matcher(fontName).matches()) {
-			return;
-		}
-
-		PdfDictionary fontDescriptor = dict.getAsDict(PdfName.FONTDESCRIPTOR);
-
-		if (fontDescriptor == null) {
-			return;
-		}
-
-		// Replace the font name and remove the embedded font data:
-		dict.put(PdfName.BASEFONT, baseFont);
-		fontDescriptor.put(PdfName.FONTNAME, baseFont);
-		fontDescriptor.remove(PdfName.FONTFILE2);
+		return ExitCode.OK;
 	}
 }
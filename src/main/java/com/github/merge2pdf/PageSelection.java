@@ -0,0 +1,149 @@
+package com.github.merge2pdf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Selection of pages given as a suffix of the input, i.e. {@code file.pdf[1-5,!last]}. The suffix is a
+ * comma-separated list of page numbers ({@code 3}), ranges ({@code 1-5}, {@code 4-}, {@code 2-last}) and the last page
+ * ({@code last}), each of which can be negated by {@code !}. Selected are the pages given by not negated items (or all
+ * pages if all items are negated) except the pages given by negated items, in the document order.
+ */
+final class PageSelection {
+
+	private static final String	LAST		= "last";
+
+	/**
+	 * Placeholder for the number of the last page.
+	 */
+	private static final int	LAST_PAGE	= -1;
+
+	private static final class Range {
+		final int	from;
+		final int	to;
+
+		Range(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		int from(int numberOfPages) {
+			return from == LAST_PAGE ? numberOfPages : from;
+		}
+
+		int to(int numberOfPages) {
+			return to == LAST_PAGE ? numberOfPages : Math.min(to, numberOfPages);
+		}
+	}
+
+	private final List<Range>	included	= new ArrayList<>();
+
+	private final List<Range>	excluded	= new ArrayList<>();
+
+	private PageSelection() {
+	}
+
+	/**
+	 * Returns given input without the selection suffix.
+	 */
+	static String fileOf(String input) {
+		int pos = selectionStart(input);
+		return pos < 0 ? input : input.substring(0, pos);
+	}
+
+	/**
+	 * Returns the selection given by the suffix of given input or {@code null} if the input has no suffix (i.e. all
+	 * pages are selected).
+	 *
+	 * @throws IllegalArgumentException if the suffix is not valid
+	 */
+	static PageSelection of(String input) {
+		int pos = selectionStart(input);
+		return pos < 0 ? null : parse(input.substring(pos + 1, input.length() - 1));
+	}
+
+	private static int selectionStart(String input) {
+		return input.endsWith("]") ? input.lastIndexOf('[') : -1;
+	}
+
+	private static PageSelection parse(String spec) {
+		PageSelection selection = new PageSelection();
+
+		for (String item : spec.split(",", -1)) {
+			String s = item.trim();
+			List<Range> ranges = selection.included;
+
+			if (s.startsWith("!")) {
+				s = s.substring(1).trim();
+				ranges = selection.excluded;
+			}
+
+			int pos = s.indexOf('-');
+			Range range;
+
+			if (pos < 0) {
+				int page = page(s, item);
+				range = new Range(page, page);
+			}
+			else {
+				String to = s.substring(pos + 1).trim();
+				range = new Range(page(s.substring(0, pos).trim(), item),
+				            to.isEmpty() ? Integer.MAX_VALUE : page(to, item));
+			}
+
+			ranges.add(range);
+		}
+
+		return selection;
+	}
+
+	private static int page(String s, String item) {
+		if (LAST.equalsIgnoreCase(s)) {
+			return LAST_PAGE;
+		}
+
+		int page;
+		try {
+			page = Integer.parseInt(s);
+		}
+		catch (NumberFormatException e) {
+			page = 0;
+		}
+
+		if (page <= 0) {
+			throw new IllegalArgumentException("Invalid page selection " + item);
+		}
+
+		return page;
+	}
+
+	/**
+	 * Returns the numbers of selected pages (in ascending order) of the document with given number of pages.
+	 */
+	List<Integer> pages(int numberOfPages) {
+		TreeSet<Integer> pages = new TreeSet<>();
+
+		if (included.isEmpty()) {
+			add(pages, new Range(1, LAST_PAGE), numberOfPages);
+		}
+
+		for (Range range : included) {
+			add(pages, range, numberOfPages);
+		}
+
+		for (Range range : excluded) {
+			for (int page = range.from(numberOfPages); page <= range.to(numberOfPages); page++) {
+				pages.remove(page);
+			}
+		}
+
+		return new ArrayList<>(pages);
+	}
+
+	private static void add(TreeSet<Integer> pages, Range range, int numberOfPages) {
+		for (int page = range.from(numberOfPages); page <= range.to(numberOfPages); page++) {
+			pages.add(page);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.github.merge2pdf;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.PRIndirectReference;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+/**
+ * {@link PdfReader} which reads the document partially: only the cross-reference table is read when the reader is
+ * opened and objects are parsed when they are requested. At most given number of parsed objects is kept, the least
+ * recently parsed ones are dropped and parsed again if they are requested again. Objects which were modified have to
+ * be {@link #pin(int, PdfObject) pinned} so that modifications are not lost.
+ */
+class PartialPdfReader extends PdfReader {
+
+	private final Set<Integer>			pinned	= new HashSet<>();
+
+	private final Map<Integer, Boolean>	cached;
+
+	PartialPdfReader(String file, int maxCachedObjects) throws IOException {
+		super(new RandomAccessFileOrArray(new RandomAccessSourceFactory().createBestSource(file)), null, true);
+
+		this.cached = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+				if (size() <= maxCachedObjects) {
+					return false;
+				}
+
+				if (!pinned.contains(eldest.getKey())) {
+					xrefObj.set(eldest.getKey(), null);
+				}
+
+				return true;
+			}
+		};
+	}
+
+	@Override
+	protected PdfObject readSingleObject(int k) throws IOException {
+		PdfObject obj = super.readSingleObject(k);
+
+		// Objects read by the constructor of the superclass (i.e. the catalog) are kept:
+		if (obj != null && cached != null) {
+			cached.put(k, Boolean.TRUE);
+		}
+
+		return obj;
+	}
+
+	/**
+	 * Keeps given (modified) object with given number in memory until the reader is closed.
+	 */
+	void pin(int number, PdfObject object) {
+		pinned.add(number);
+		xrefObj.set(number, object);
+	}
+
+	/**
+	 * Keeps given (modified) object in memory until the reader is closed if it is referenced by given indirect
+	 * reference.
+	 */
+	void pin(PdfObject reference, PdfObject object) {
+		if (reference instanceof PRIndirectReference) {
+			pin(((PRIndirectReference) reference).getNumber(), object);
+		}
+	}
+}
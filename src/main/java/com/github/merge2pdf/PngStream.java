@@ -0,0 +1,278 @@
+package com.github.merge2pdf;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.itextpdf.text.Image;
+import com.itextpdf.text.pdf.BadPdfFormatException;
+import com.itextpdf.text.pdf.PdfImage;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.PdfWriter;
+import com.itextpdf.text.pdf.codec.PngImage;
+
+/**
+ * Image XObject of PNG file which compressed image data (the content of {@code IDAT} chunks) is copied from the file
+ * as it is when the stream is written: PNG filters are the same as PDF predictors, hence the data is neither inflated
+ * nor deflated again, and it is never held in memory. Only the files which iText itself would not decode are
+ * supported: not interlaced, at most 8 bits per component, without alpha channel and without transparent palette
+ * entries. The dictionary is the one iText creates for the file, as it is created from the file without {@code IDAT}
+ * chunks.
+ */
+class PngStream extends PdfStream {
+
+	private static final byte[]	SIGNATURE	= { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	private static final String	IDAT		= "IDAT";
+
+	private static final String	IEND		= "IEND";
+
+	/**
+	 * Chunks which are read by {@link PngImage} besides {@code IDAT} and {@code IEND}. Other (ancillary) chunks are
+	 * skipped.
+	 */
+	private static final List<String>	HEADER_CHUNKS	= Arrays.asList("IHDR", "PLTE", "tRNS", "iCCP", "gAMA", "cHRM",
+	            "sRGB", "pHYs");
+
+	/**
+	 * Maximum length of a chunk which is read into memory. It leaves enough room for large ICC profiles, whereas the
+	 * other chunks read by {@link PngImage} are at most a few hundred bytes.
+	 */
+	private static final int	MAX_HEADER_CHUNK_LENGTH	= 16 * 1024 * 1024;
+
+	/**
+	 * Image read from the header of PNG file, which can be scaled and placed but which does not have image data.
+	 */
+	static final class HeaderImage extends Image {
+
+		private static final long	serialVersionUID	= 1L;
+
+		private final File			file;
+
+		/**
+		 * Positions of the data of {@code IDAT} chunks in the file.
+		 */
+		private final long[]		offsets;
+
+		private final int[]			lengths;
+
+		private HeaderImage(Image image, File file, long[] offsets, int[] lengths) {
+			super(image);
+			this.file = file;
+			this.offsets = offsets;
+			this.lengths = lengths;
+		}
+	}
+
+	private static final long	serialVersionUID	= 1L;
+
+	private final HeaderImage	image;
+
+	/**
+	 * Creates the stream of given image which has been read by {@link #read(String)}.
+	 */
+	PngStream(HeaderImage image) throws BadPdfFormatException {
+		this.image = image;
+
+		putAll(new PdfImage(image, ImagePage.IMAGE_NAME, null));
+	}
+
+	/**
+	 * Reads the header of given file and returns the image without image data or {@code null} if the file is not
+	 * supported PNG file.
+	 */
+	static HeaderImage read(String file) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		List<long[]> chunks = new ArrayList<>();
+		boolean supported = true;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			byte[] signature = new byte[SIGNATURE.length];
+			if (in.read(signature) != signature.length || !Arrays.equals(signature, SIGNATURE)) {
+				return null;
+			}
+			header.write(signature);
+
+			long position = signature.length;
+			int colorType = -1;
+
+			while (true) {
+				int length = in.readInt();
+				byte[] type = new byte[4];
+				in.readFully(type);
+				String marker = new String(type, StandardCharsets.US_ASCII);
+				position += 8;
+
+				if (length < 0) {
+					return null;
+				}
+
+				if (IDAT.equals(marker)) {
+					chunks.add(new long[] { position, length });
+					skipFully(in, length + 4L);
+				}
+				else if (!IEND.equals(marker) && !HEADER_CHUNKS.contains(marker)) {
+					// Chunk is not used by iText:
+					skipFully(in, length + 4L);
+				}
+				else {
+					if (length > MAX_HEADER_CHUNK_LENGTH || "IHDR".equals(marker) && length < 13) {
+						return null;
+					}
+
+					// Chunk including its CRC:
+					byte[] data = new byte[length + 4];
+					in.readFully(data);
+
+					if ("IHDR".equals(marker)) {
+						int bitDepth = data[8] & 0xFF;
+						colorType = data[9] & 0xFF;
+						int interlaceMethod = data[12] & 0xFF;
+						supported = interlaceMethod == 0 && bitDepth <= 8 && (colorType & 4) == 0;
+					}
+					else if ("tRNS".equals(marker) && colorType == 3) {
+						// Transparent palette entries require the mask which is created from decoded pixels:
+						supported = false;
+					}
+
+					header.write(ByteBuffer.allocate(4).putInt(length).array());
+					header.write(type);
+					header.write(data);
+				}
+
+				position += length + 4L;
+
+				if (IEND.equals(marker) || !supported) {
+					break;
+				}
+			}
+		}
+		catch (EOFException e) {
+			// Truncated file is left to iText to report:
+			return null;
+		}
+
+		if (!supported || chunks.isEmpty()) {
+			return null;
+		}
+
+		Image image = PngImage.getImage(header.toByteArray());
+		if (image.getImageMask() != null || !image.isImgRaw() || !image.isDeflated()) {
+			return null;
+		}
+
+		long[] offsets = new long[chunks.size()];
+		int[] lengths = new int[chunks.size()];
+		for (int i = 0; i < chunks.size(); i++) {
+			offsets[i] = chunks.get(i)[0];
+			lengths[i] = (int) chunks.get(i)[1];
+		}
+
+		return new HeaderImage(image, new File(file), offsets, lengths);
+	}
+
+	private static void skipFully(DataInputStream in, long n) throws IOException {
+		for (long remaining = n; remaining > 0;) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				in.readByte();
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	@Override
+	public void toPdf(PdfWriter writer, OutputStream os) throws IOException {
+		long size = 0;
+		for (int length : image.lengths) {
+			size += length;
+		}
+
+		try (FileChannel channel = FileChannel.open(image.file.toPath(), StandardOpenOption.READ)) {
+			put(PdfName.LENGTH, new PdfNumber(size));
+			inputStream = new IdatInputStream(channel);
+
+			super.toPdf(writer, os);
+		}
+		finally {
+			inputStream = null;
+		}
+	}
+
+	/**
+	 * Data of {@code IDAT} chunks read one after another. Chunks are checked to be at their positions, so that the
+	 * file is not modified since its header was read.
+	 */
+	private final class IdatInputStream extends InputStream {
+
+		private final FileChannel	channel;
+
+		private int					chunk		= -1;
+
+		private long				position;
+
+		private long				remaining;
+
+		IdatInputStream(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (remaining == 0) {
+				if (++chunk == image.offsets.length) {
+					return -1;
+				}
+
+				position = image.offsets[chunk];
+				remaining = image.lengths[chunk];
+				checkChunk();
+			}
+
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+			if (n < 0) {
+				throw new IOException("File " + image.file + " was truncated while it was written to the output");
+			}
+
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		private void checkChunk() throws IOException {
+			ByteBuffer chunkHeader = ByteBuffer.allocate(8);
+			while (chunkHeader.hasRemaining()) {
+				if (channel.read(chunkHeader, position - 8 + chunkHeader.position()) < 0) {
+					break;
+				}
+			}
+
+			if (chunkHeader.hasRemaining() || chunkHeader.getInt(0) != remaining
+			            || !IDAT.equals(new String(chunkHeader.array(), 4, 4, StandardCharsets.US_ASCII))) {
+				throw new IOException("File " + image.file + " was modified while it was written to the output");
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.github.merge2pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.itextpdf.text.pdf.PdfReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * PDF inputs which are shared by several merge jobs of one batch (like the cover which is appended to every patient).
+ * Each such PDF is read and parsed only once. Every job gets its own copy of the parsed document, hence copies can be
+ * modified (e.g. fonts removed) and used by concurrent jobs. If the file changes (size or modification time), it is
+ * parsed again.
+ */
+public class SharedPdfs {
+
+	private static final Log	logger = LogFactory.getLog(SharedPdfs.class);
+
+	private static final class Template {
+		final PdfReader	reader;
+		final long		size;
+		final long		lastModified;
+
+		Template(PdfReader reader, long size, long lastModified) {
+			this.reader = reader;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final Set<String>			shared;
+
+	private final Map<String, Template>	templates = new HashMap<>();
+
+	public SharedPdfs(Collection<String> shared) {
+		this.shared = new HashSet<>(shared);
+	}
+
+	/**
+	 * Returns the PDF inputs which occur in more than one of given jobs (regardless of selected pages). The last file
+	 * of each job is the output and is not considered.
+	 */
+	static SharedPdfs of(List<List<String>> jobs) {
+		Set<String> seen = new HashSet<>();
+		Set<String> shared = new HashSet<>();
+
+		for (List<String> job : jobs) {
+			Set<String> files = new HashSet<>();
+			for (String input : job.subList(0, job.size() - 1)) {
+				files.add(PageSelection.fileOf(input));
+			}
+
+			for (String file : files) {
+				if (file.toLowerCase().endsWith(".pdf") && !seen.add(file)) {
+					shared.add(file);
+				}
+			}
+		}
+
+		return new SharedPdfs(shared);
+	}
+
+	public boolean isShared(String file) {
+		return shared.contains(file);
+	}
+
+	/**
+	 * Returns new reader for given file. For shared files the reader is a copy of once parsed document.
+	 */
+	public PdfReader open(String file) throws IOException {
+		if (!isShared(file)) {
+			return new PdfReader(file);
+		}
+
+		Template template = template(file);
+
+		synchronized (template) {
+			return new PdfReader(template.reader);
+		}
+	}
+
+	private synchronized Template template(String file) throws IOException {
+		File f = new File(file);
+		long size = f.length();
+		long lastModified = f.lastModified();
+		Template template = templates.get(file);
+
+		if (template == null || template.size != size || template.lastModified != lastModified) {
+			logger.debug("Parsing shared PDF " + file);
+			// Copies read from in-memory source independently of each other and of the file:
+			template = new Template(new PdfReader(Files.readAllBytes(f.toPath())), size, lastModified);
+			templates.put(file, template);
+		}
+
+		return template;
+	}
+}
@@ -0,0 +1,369 @@
+package com.github.merge2pdf;
+
+import static com.github.merge2pdf.MergeTest.OUTPUT_DIR;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import com.github.merge2pdf.MergeToPdf.ExitCode;
+import com.github.merge2pdf.MergeToPdf.Opt;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfWriter;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link MergeToPdf} batch mode ({@code --based}).
+ */
+public class BatchTest {
+
+	static final String	TODAY	 = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+
+	final File			batchDir = new File(OUTPUT_DIR, "batch");
+	final File			baseDir	 = new File(batchDir, "主检");
+	final File			fromDir	 = new File(batchDir, "lab");
+	final File			toDir	 = new File(batchDir, "out");
+
+	@Before
+	public void setUp() throws Exception {
+		FileUtils.deleteDirectory(batchDir);
+
+		createPdf(new File(baseDir, "封面未删.pdf"), 1);
+		createPdf(new File(baseDir, TODAY + "/12345678_main.pdf"), 3);
+		createPdf(new File(baseDir, TODAY + "/87654321_main.pdf"), 2);
+		createPdf(new File(fromDir, TODAY + "/12345678_lab.pdf"), 2);
+		createPdf(new File(fromDir, TODAY + "/x12345678_lab.pdf"), 1);
+		createPdf(new File(fromDir, "2000-01-01/12345678_lab.pdf"), 5);
+	}
+
+	@Test
+	public void testBased() throws Exception {
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(new String[] { "--" + Opt.based, baseDir.getPath(),
+		        "--" + Opt.from, fromDir.getPath(), "--" + Opt.to, toDir.getPath() }));
+
+		// Base without last page + lab report + cover:
+		assertEquals(2 + 2 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+		assertEquals(1 + 1, getNumberOfPages(new File(toDir, TODAY + "/87654321_main.pdf")));
+	}
+
+	@Test
+	public void testBasedWithMrnPattern() throws Exception {
+		assertEquals(ExitCode.INVALID_OPTION,
+		            MergeToPdf.processOptions(new String[] { "--" + Opt.based, baseDir.getPath(), "--" + Opt.from,
+		                    "--" + Opt.mrnPattern.value(), "(\\d{8", fromDir.getPath() }));
+
+		assertEquals(ExitCode.OK,
+		            MergeToPdf.processOptions(new String[] { "--" + Opt.based, baseDir.getPath(), "--" + Opt.from,
+		                    "--" + Opt.mrnPattern.value(), "(\\d{8})_", fromDir.getPath(), "--" + Opt.to,
+		                    toDir.getPath() }));
+
+		// Also "x12345678_lab.pdf" is matched:
+		assertEquals(2 + 2 + 1 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+		assertFalse(new File(toDir, TODAY + "/x12345678_lab.pdf").exists());
+		assertTrue(new File(toDir, TODAY + "/87654321_main.pdf").exists());
+	}
+
+	@Test
+	public void testBasedWithDays() throws Exception {
+		createPdf(new File(fromDir, FindPdfs.lookbackDates(2).keySet().iterator().next() + "/12345678_old.pdf"), 3);
+
+		assertEquals(ExitCode.INVALID_OPTION, MergeToPdf.processOptions(new String[] { "--" + Opt.based,
+		        baseDir.getPath(), "--" + Opt.from, "--" + Opt.days, "0", fromDir.getPath() }));
+
+		// Yesterday's report is out of the window:
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(new String[] { "--" + Opt.based, baseDir.getPath(),
+		        "--" + Opt.from, "--" + Opt.days, "1", fromDir.getPath(), "--" + Opt.to, toDir.getPath() }));
+		assertEquals(2 + 2 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(new String[] { "--" + Opt.based, baseDir.getPath(),
+		        "--" + Opt.from, "--" + Opt.days, "2", fromDir.getPath(), "--" + Opt.to, toDir.getPath() }));
+		assertEquals(2 + 3 + 2 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+	}
+
+	@Test
+	public void testBasedWithThreads() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			createPdf(new File(baseDir, TODAY + "/1000000" + i + "_main.pdf"), 2);
+			createPdf(new File(fromDir, TODAY + "/1000000" + i + "_lab.pdf"), i + 1);
+		}
+
+		assertEquals(ExitCode.INVALID_OPTION, MergeToPdf.processOptions(new String[] { "--" + Opt.based,
+		        baseDir.getPath(), "--" + Opt.from, "--" + Opt.threads, "none", fromDir.getPath() }));
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(new String[] { "--" + Opt.based, baseDir.getPath(),
+		        "--" + Opt.from, "--" + Opt.threads, "4", fromDir.getPath(), "--" + Opt.to, toDir.getPath() }));
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals(1 + i + 1 + 1, getNumberOfPages(new File(toDir, TODAY + "/1000000" + i + "_main.pdf")));
+		}
+		assertEquals(2 + 2 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+	}
+
+	@Test
+	public void testBasedWithSharedCover() throws Exception {
+		// Cover has two pages, the first uses embedded DejaVuSans, the second DejaVuSerif:
+		FileUtils.copyFile(new File(MergeTest.IMAGES_DIR, "font_DejaVu_pattern_form.pdf"),
+		            new File(baseDir, "封面未删.pdf"));
+		for (int i = 0; i < 10; i++) {
+			createPdf(new File(baseDir, TODAY + "/1000000" + i + "_main.pdf"), 2);
+		}
+
+		// The cover is parsed once and each patient modifies its own copy:
+		assertEquals(ExitCode.OK,
+		            MergeToPdf.processOptions(new String[] { "--" + Opt.based, baseDir.getPath(), "--" + Opt.from,
+		                    "--" + Opt.threads, "4", "--" + Opt.removeFont.value(), "DejaVuSans", fromDir.getPath(),
+		                    "--" + Opt.to, toDir.getPath() }));
+
+		for (int i = 0; i < 10; i++) {
+			File output = new File(toDir, TODAY + "/1000000" + i + "_main.pdf");
+			assertEquals(1 + 2, getNumberOfPages(output));
+			assertEquals(1, MergeTest.embeddedFonts(output));
+		}
+		assertEquals(2 + 2 + 2, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+		assertEquals(1, MergeTest.embeddedFonts(new File(toDir, TODAY + "/12345678_main.pdf")));
+	}
+
+	@Test
+	public void testBasedWithScanThreads() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			createPdf(new File(fromDir, "dept" + i + "/" + TODAY + "/12345678_dept" + i + ".pdf"), 1);
+		}
+		createPdf(new File(fromDir, "dept0/2000-01-01/" + TODAY + "/12345678_old.pdf"), 1);
+
+		assertEquals(ExitCode.INVALID_OPTION, MergeToPdf.processOptions(new String[] { "--" + Opt.based,
+		        baseDir.getPath(), "--" + Opt.from, "--" + Opt.scanThreads.value(), "0", fromDir.getPath() }));
+
+		assertEquals(ExitCode.OK,
+		            MergeToPdf.processOptions(new String[] { "--" + Opt.based, baseDir.getPath(), "--" + Opt.from,
+		                    "--" + Opt.scanThreads.value(), "4", fromDir.getPath(), "--" + Opt.to,
+		                    toDir.getPath() }));
+
+		// Directory with out-of-window date is not descended into:
+		assertEquals(2 + 2 + 5 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+	}
+
+	@Test
+	public void testBasedWithDedup() throws Exception {
+		File lab = new File(fromDir, TODAY + "/12345678_lab.pdf");
+		FileUtils.copyFile(lab, new File(fromDir, "copy/" + TODAY + "/12345678_lab.pdf"));
+		// Same size but different content (document ID differs):
+		byte[] content = FileUtils.readFileToByteArray(lab);
+		int pos = new String(content, "ISO-8859-1").lastIndexOf("/ID [<") + "/ID [<".length();
+		content[pos] = (byte) (content[pos] == '0' ? '1' : '0');
+		FileUtils.writeByteArrayToFile(new File(fromDir, "other/" + TODAY + "/12345678_lab.pdf"), content);
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(new String[] { "--" + Opt.based, baseDir.getPath(),
+		        "--" + Opt.from, "--" + Opt.dedup, fromDir.getPath(), "--" + Opt.to, toDir.getPath() }));
+
+		assertEquals(2 + 2 + 2 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+	}
+
+	@Test
+	public void testBasedWithFailedPatient() throws Exception {
+		FileUtils.write(new File(fromDir, TODAY + "/87654321_broken.pdf"), "not a PDF", "UTF-8");
+
+		assertEquals(ExitCode.MERGE_FAILED, MergeToPdf.processOptions(new String[] { "--" + Opt.based,
+		        baseDir.getPath(), "--" + Opt.from, "--" + Opt.threads, "2", fromDir.getPath(), "--" + Opt.to,
+		        toDir.getPath() }));
+
+		// Other patients are not affected:
+		assertEquals(2 + 2 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+	}
+
+	@Test
+	public void testBasedIncremental() throws Exception {
+		String[] args = new String[] { "--" + Opt.based, baseDir.getPath(), "--" + Opt.from, "--" + Opt.incremental,
+		        fromDir.getPath(), "--" + Opt.to, toDir.getPath() };
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+
+		File output1 = new File(toDir, TODAY + "/12345678_main.pdf");
+		File output2 = new File(toDir, TODAY + "/87654321_main.pdf");
+		assertTrue(new File(output1.getParentFile(), Journal.FILE_NAME).isFile());
+		assertTrue(output1.setLastModified(1000));
+		assertTrue(output2.setLastModified(1000));
+
+		// Only the patient with changed input is merged again:
+		createPdf(new File(fromDir, TODAY + "/12345678_lab.pdf"), 3);
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertEquals(2 + 3 + 1, getNumberOfPages(output1));
+		assertTrue(output1.lastModified() != 1000);
+		assertEquals(1000, output2.lastModified());
+
+		// Changed settings invalidate the journal:
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(ArrayUtils.add(args, "--" + Opt.dpi)));
+		assertTrue(output2.lastModified() != 1000);
+	}
+
+	@Test
+	public void testBasedWithIndex() throws Exception {
+		File indexFile = new File(batchDir, "index.txt");
+		String[] args = new String[] { "--" + Opt.based, baseDir.getPath(), "--" + Opt.from, "--" + Opt.index,
+		        indexFile.getPath(), fromDir.getPath(), "--" + Opt.to, toDir.getPath() };
+
+		// Directories modified just before they are listed are not trusted by the index:
+		FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+		File labDir = new File(fromDir, TODAY);
+		// Names with line breaks and backslashes do not corrupt the index:
+		createPdf(new File(labDir, "12345678_line\nbreak\\n.pdf"), 1);
+		Files.setLastModifiedTime(labDir.toPath(), past);
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertTrue(indexFile.isFile());
+		assertEquals(2 + 2 + 1 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+
+		// Unmodified directory is not listed again, hence new file is not seen:
+		createPdf(new File(labDir, "12345678_new.pdf"), 3);
+		Files.setLastModifiedTime(labDir.toPath(), past);
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertEquals(2 + 2 + 1 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+
+		// Directory which modification time changed is listed again:
+		Files.setLastModifiedTime(labDir.toPath(), FileTime.fromMillis(past.toMillis() + 1000));
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertEquals(2 + 2 + 1 + 3 + 1, getNumberOfPages(new File(toDir, TODAY + "/12345678_main.pdf")));
+	}
+
+	@Test
+	public void testBasedWithReport() throws Exception {
+		File reportFile = new File(batchDir, "report.csv");
+		String[] args = new String[] { "--" + Opt.based, baseDir.getPath(), "--" + Opt.from, "--" + Opt.incremental,
+		        "--" + Opt.report, reportFile.getPath(), fromDir.getPath(), "--" + Opt.to, toDir.getPath() };
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+
+		List<String> lines = FileUtils.readLines(reportFile, "UTF-8");
+		assertEquals(1 + 2 + 4, lines.size());
+		assertTrue(lines.get(0).startsWith("mrn,output,status,patients,inputs,input_bytes,output_pages,output_bytes,"));
+		assertTrue(lines.get(0).endsWith(",total_ms,folder_scan_ms,elapsed_ms"));
+
+		// Patients are reported in the order of base files:
+		String[] row = lines.get(lines.get(1).startsWith("12345678,") ? 1 : 2).split(",");
+		assertEquals("12345678", row[0]);
+		assertEquals("merged", row[2]);
+		assertEquals("1", row[3]);
+		assertEquals("3", row[4]);
+		assertEquals("5", row[6]);
+		assertEquals(new File(toDir, TODAY + "/12345678_main.pdf").length(), Long.parseLong(row[7]));
+
+		row = lines.get(3).split(",");
+		assertEquals("TOTAL", row[0]);
+		assertEquals("", row[2]);
+		assertEquals("2", row[3]);
+		assertEquals(String.valueOf(5 + 2), row[6]);
+		assertEquals(16, row.length);
+		// Wall time includes the folder scan:
+		assertTrue(Double.parseDouble(row[15]) >= Double.parseDouble(row[14]));
+		assertTrue(lines.get(4).startsWith("P50,"));
+		assertTrue(lines.get(6).startsWith("P99,"));
+		assertFalse(lines.get(6).split(",")[13].isEmpty());
+
+		// Patients which inputs have not changed are reported as skipped:
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		lines = FileUtils.readLines(reportFile, "UTF-8");
+		assertEquals("skipped", lines.get(1).split(",")[2]);
+		assertEquals("skipped", lines.get(2).split(",")[2]);
+		// Percentiles are calculated over merged patients only:
+		assertEquals("P50,,,,,,,,,,,,,,,", lines.get(4));
+	}
+
+	@Test(timeout = 60000)
+	public void testBasedWatch() throws Exception {
+		File output = new File(toDir, TODAY + "/12345678_main.pdf");
+		File newOutput = new File(toDir, TODAY + "/11111111_main.pdf");
+
+		Thread watcher = new Thread(() -> {
+			try {
+				MergeToPdf.processOptions(new String[] { "--" + Opt.based, baseDir.getPath(), "--" + Opt.from,
+				        "--" + Opt.watch, "200", fromDir.getPath(), "--" + Opt.to, toDir.getPath() });
+			}
+			catch (Exception e) {
+				ExceptionUtils.rethrow(e);
+			}
+		});
+		watcher.start();
+
+		try {
+			// Initial batch:
+			waitForPages(output, 2 + 2 + 1);
+
+			// Source file arrives into new day directory:
+			createPdf(new File(fromDir, "new/" + TODAY + "/12345678_new.pdf"), 4);
+			waitForPages(output, 2 + 2 + 4 + 1);
+
+			// Source folder is moved away, which reports only the folder itself:
+			Files.move(new File(fromDir, "new").toPath(), new File(batchDir, "moved").toPath());
+			waitForPages(output, 2 + 2 + 1);
+
+			// Base file arrives after the source file:
+			createPdf(new File(fromDir, TODAY + "/11111111_lab.pdf"), 2);
+			createPdf(new File(baseDir, TODAY + "/11111111_main.pdf"), 2);
+			waitForPages(newOutput, 1 + 2 + 1);
+		}
+		finally {
+			watcher.interrupt();
+			watcher.join();
+		}
+	}
+
+	private static void waitForPages(File pdfFile, int pages) throws Exception {
+		while (!pdfFile.isFile() || getNumberOfPagesIfComplete(pdfFile) != pages) {
+			Thread.sleep(100);
+		}
+	}
+
+	/**
+	 * Returns the number of pages or -1 if the file is still being written.
+	 */
+	private static int getNumberOfPagesIfComplete(File pdfFile) {
+		try {
+			return getNumberOfPages(pdfFile);
+		}
+		catch (IOException e) {
+			return -1;
+		}
+	}
+
+	static int getNumberOfPages(File pdfFile) throws IOException {
+		PdfReader reader = new PdfReader(pdfFile.getPath());
+		try {
+			return reader.getNumberOfPages();
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	static void createPdf(File pdfFile, int pages) throws IOException, DocumentException {
+		pdfFile.getParentFile().mkdirs();
+
+		Document document = new Document();
+		try (FileOutputStream os = new FileOutputStream(pdfFile)) {
+			PdfWriter.getInstance(document, os);
+			document.open();
+			for (int i = 1; i <= pages; i++) {
+				document.newPage();
+				document.add(new Paragraph(pdfFile.getName() + " page " + i));
+			}
+			document.close();
+		}
+	}
+}
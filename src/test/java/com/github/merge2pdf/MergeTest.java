@@ -1,19 +1,30 @@
 package com.github.merge2pdf;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -30,10 +41,21 @@ import com.github.jaiimageio.plugins.tiff.TIFFField;
 import com.github.jaiimageio.plugins.tiff.TIFFTag;
 import com.github.merge2pdf.MergeToPdf.ExitCode;
 import com.github.merge2pdf.MergeToPdf.Opt;
+import com.itextpdf.text.Document;
 import com.itextpdf.text.PageSize;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PRStream;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.PdfWriter;
 import com.itextpdf.text.pdf.parser.PdfContentReaderTool;
 
 import org.apache.commons.io.Charsets;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -134,6 +156,31 @@ public class MergeTest {
 		            MergeToPdf.processOptions(new String[] { "-m", "-r(arial", "in.pdf", "out.pdf" }));
 	}
 
+	@Test
+	public void testMergeOptions() {
+		MergeOptions options = MergeOptions.builder().scaleToPage("5").gravity("northWest").border(10).build();
+		assertEquals(MergeOptions.Gravity.topLeft, options.getGravity());
+		assertEquals(PageSize.A5.getWidth(), options.getScaleToPage().getWidth(), 0);
+
+		// Options cannot be modified through returned values:
+		options.getScaleToPage().setRight(1);
+		assertEquals(PageSize.A5.getWidth(), options.getScaleToPage().getWidth(), 0);
+
+		assertEquals(MergeOptions.Gravity.center, MergeOptions.builder().build().getGravity());
+
+		for (Runnable invalid : new Runnable[] { () -> MergeOptions.builder().gravity("top").build(),
+		        () -> MergeOptions.builder().scaleToBox("10x"), () -> MergeOptions.builder().border(-1),
+		        () -> MergeOptions.builder().removeFonts("(arial") }) {
+			try {
+				invalid.run();
+				fail("IllegalArgumentException expected");
+			}
+			catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
 	@Test
 	public void testMergeDefault() {
 		runTest(args, "default");
@@ -175,6 +222,22 @@ public class MergeTest {
 		            "dpi_page_border");
 	}
 
+	@Test
+	public void testMergeImageThreads() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_image_threads.pdf");
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(ArrayUtils.add(args, pdfFile.getPath())));
+		String expected = dump(pdfFile);
+
+		// Images are added in input order regardless of the order they are converted:
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(ArrayUtils
+		            .add(ArrayUtils.insert(0, args, "--" + Opt.imageThreads.value(), "4"), pdfFile.getPath())));
+		assertEquals(expected, dump(pdfFile));
+
+		assertEquals(ExitCode.INVALID_OPTION, MergeToPdf.processOptions(ArrayUtils
+		            .add(ArrayUtils.insert(0, args, "--" + Opt.imageThreads.value(), "0"), pdfFile.getPath())));
+	}
+
 	@Test
 	public void testMergeScale() {
 		runTest(ArrayUtils.insert(0, args, "--" + Opt.scale, "100x100"), "scale");
@@ -250,6 +313,534 @@ public class MergeTest {
 		runTest(args, "font_Arial_removed");
 	}
 
+	@Test
+	public void testRemoveFontsOfPatternsAndForms() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_font_pattern_form.pdf");
+		String input = new File(IMAGES_DIR, "font_DejaVu_pattern_form.pdf").getPath();
+
+		assertEquals(ExitCode.OK,
+		            MergeToPdf.processOptions(new String[] { "--" + Opt.merge, input, pdfFile.getPath() }));
+		assertEquals(2, embeddedFonts(pdfFile));
+
+		// One font is used only by the tiling pattern which fills the first page, the other only by the form XObject
+		// on the second page:
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(new String[] { "--" + Opt.merge,
+		        "--" + Opt.removeFont.value(), "DejaVuSans", input, pdfFile.getPath() }));
+		assertEquals(1, embeddedFonts(pdfFile));
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(new String[] { "--" + Opt.merge,
+		        "--" + Opt.removeFont.value(), "DejaVu.*", input, pdfFile.getPath() }));
+		assertEquals(0, embeddedFonts(pdfFile));
+	}
+
+	/**
+	 * Returns the number of font descriptors with embedded TrueType font in given file.
+	 */
+	static int embeddedFonts(File pdfFile) throws IOException {
+		PdfReader reader = new PdfReader(pdfFile.getPath());
+		try {
+			return embeddedFonts(reader);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private static int embeddedFonts(PdfReader reader) {
+		int fonts = 0;
+		for (int i = 1; i < reader.getXrefSize(); i++) {
+			PdfObject obj = reader.getPdfObject(i);
+			if (obj != null && obj.isDictionary()
+			            && PdfName.FONTDESCRIPTOR.equals(((PdfDictionary) obj).getAsName(PdfName.TYPE))
+			            && ((PdfDictionary) obj).get(PdfName.FONTFILE2) != null) {
+				fonts++;
+			}
+		}
+		return fonts;
+	}
+
+	@Test
+	public void testSharedPdfs() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "shared.pdf");
+		FileUtils.copyFile(new File(IMAGES_DIR, "font_DejaVu_pattern_form.pdf"), pdfFile);
+		SharedPdfs sharedPdfs = new SharedPdfs(Collections.singleton(pdfFile.getPath()));
+
+		// Font removed from one copy is still present in the other and in the copies opened later:
+		PdfReader reader1 = sharedPdfs.open(pdfFile.getPath());
+		PdfReader reader2 = sharedPdfs.open(pdfFile.getPath());
+		new FontRemoval(Pattern.compile("DejaVuSans")).removeFonts(reader1, Arrays.asList(1, 2));
+		assertEquals(1, embeddedFonts(reader1));
+		assertEquals(2, embeddedFonts(reader2));
+		reader1.close();
+		reader2.close();
+
+		reader1 = sharedPdfs.open(pdfFile.getPath());
+		assertEquals(2, embeddedFonts(reader1));
+		reader1.close();
+
+		// Files of the same size which differ in the title:
+		long lastModified = pdfFile.lastModified() - 10000;
+		createTitledPdf(pdfFile, "one");
+		assertTrue(pdfFile.setLastModified(lastModified));
+		assertEquals("one", title(sharedPdfs, pdfFile));
+
+		// Unchanged size and modification time do not cause the file to be parsed again:
+		long size = pdfFile.length();
+		createTitledPdf(pdfFile, "two");
+		assertEquals(size, pdfFile.length());
+		assertTrue(pdfFile.setLastModified(lastModified));
+		assertEquals("one", title(sharedPdfs, pdfFile));
+
+		// Changed modification time:
+		assertTrue(pdfFile.setLastModified(lastModified + 2000));
+		assertEquals("two", title(sharedPdfs, pdfFile));
+
+		// Changed size:
+		createTitledPdf(pdfFile, "three");
+		assertTrue(pdfFile.setLastModified(lastModified + 2000));
+		assertEquals("three", title(sharedPdfs, pdfFile));
+	}
+
+	private static void createTitledPdf(File pdfFile, String title) throws Exception {
+		Document document = new Document();
+		try (FileOutputStream os = new FileOutputStream(pdfFile)) {
+			PdfWriter.getInstance(document, os);
+			document.addTitle(title);
+			document.open();
+			document.add(new Paragraph("page"));
+			document.close();
+		}
+	}
+
+	private static String title(SharedPdfs sharedPdfs, File pdfFile) throws IOException {
+		PdfReader reader = sharedPdfs.open(pdfFile.getPath());
+		try {
+			return reader.getInfo().get("Title");
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testMergeLowMemory() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_low_memory.pdf");
+		String[] args = new String[] { "--" + Opt.merge, "--" + Opt.removeFont.value(), "Arial",
+		        new File(IMAGES_DIR, "font_Arial_Times.pdf").getPath(),
+		        new File(IMAGES_DIR, "font_Arial_Times.pdf").getPath(),
+		        new File(IMAGES_DIR, "font_Arial.pdf").getPath(), pdfFile.getPath() };
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		String expected = dump(pdfFile);
+		long expectedLength = pdfFile.length();
+
+		// Objects are parsed again once dropped from the cache, however removed fonts should stay removed:
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(
+		            ArrayUtils.insert(0, args, "--" + Opt.lowMemory.value(), "1")));
+		assertEquals(expected, dump(pdfFile));
+		assertEquals(expectedLength, pdfFile.length());
+
+		assertEquals(ExitCode.INVALID_OPTION,
+		            MergeToPdf.processOptions(ArrayUtils.insert(0, args, "--" + Opt.lowMemory.value(), "0")));
+	}
+
+	@Test
+	public void testMergeCopyStrategy() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_copy_strategy.pdf");
+		String[] args = new String[] { "--" + Opt.merge, "--" + Opt.copy.value(), "plain",
+		        new File(IMAGES_DIR, "font_Arial_Times.pdf").getPath(),
+		        new File(IMAGES_DIR, "font_Arial_Times.pdf").getPath(),
+		        new File(IMAGES_DIR, "font_Arial_Times.pdf").getPath(), pdfFile.getPath() };
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		long plainLength = pdfFile.length();
+		int pages = BatchTest.getNumberOfPages(pdfFile);
+
+		args[2] = "smart";
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		long smartLength = pdfFile.length();
+
+		// Embedded fonts of the second input are written once:
+		args[2] = "bounded:10:0";
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		long boundedLength = pdfFile.length();
+
+		assertTrue(plainLength > boundedLength);
+		assertTrue(boundedLength >= smartLength);
+		assertEquals(pages, BatchTest.getNumberOfPages(pdfFile));
+
+		args[2] = "bounded:0";
+		assertEquals(ExitCode.INVALID_OPTION, MergeToPdf.processOptions(args));
+		args[2] = "smart:10";
+		assertEquals(ExitCode.INVALID_OPTION, MergeToPdf.processOptions(args));
+	}
+
+	@Test
+	public void testMergeSameImage() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_same_image.pdf");
+		String tiff = new File(IMAGES_DIR, "6-7_fits_rotate-scale.tif").getPath();
+		String[] args = new String[] { "--" + Opt.merge, "--" + Opt.copy.value(), "plain",
+		        new File(IMAGES_DIR, "font_Arial.pdf").getPath(), tiff, tiff, tiff, pdfFile.getPath() };
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertEquals(3 * 2, imageNumbers(pdfFile).size());
+		long plainLength = pdfFile.length();
+
+		// Each image of the TIFF file is written once:
+		args[2] = "smart";
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertEquals(2, imageNumbers(pdfFile).size());
+		assertTrue(plainLength > pdfFile.length());
+
+		args[2] = "bounded:1";
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertEquals(3 * 2, imageNumbers(pdfFile).size());
+
+		args[2] = "bounded:2";
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertEquals(2, imageNumbers(pdfFile).size());
+	}
+
+	@Test
+	public void testMergeObjectStreams() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_object_streams.pdf");
+		String[] args = new String[] { "--" + Opt.merge, "--" + Opt.objectStreams.value(),
+		        new File(IMAGES_DIR, "font_Arial_Times.pdf").getPath(),
+		        new File(IMAGES_DIR, "font_Arial.pdf").getPath(), new File(IMAGES_DIR, "2_dpi_standard.tiff").getPath(),
+		        pdfFile.getPath() };
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(ArrayUtils.remove(args, 1)));
+		long plainLength = pdfFile.length();
+		int pages;
+		PdfReader reader = new PdfReader(pdfFile.getPath());
+		try {
+			pages = reader.getNumberOfPages();
+			assertTrue(!reader.isNewXrefType());
+		}
+		finally {
+			reader.close();
+		}
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		reader = new PdfReader(pdfFile.getPath());
+		try {
+			assertTrue(reader.isNewXrefType());
+			assertEquals('5', reader.getPdfVersion());
+			assertEquals(pages, reader.getNumberOfPages());
+		}
+		finally {
+			reader.close();
+		}
+		assertTrue(plainLength > pdfFile.length());
+	}
+
+	@Test
+	public void testMergeLinearized() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_linearized.pdf");
+		String[] args = new String[] { "--" + Opt.merge, "--" + Opt.linearize.value(),
+		        new File(IMAGES_DIR, "font_Arial_Times.pdf").getPath(),
+		        new File(IMAGES_DIR, "font_Arial.pdf").getPath(), new File(IMAGES_DIR, "2_dpi_standard.tiff").getPath(),
+		        new File(IMAGES_DIR, "font_Arial_Times.pdf").getPath(), pdfFile.getPath() };
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(ArrayUtils.remove(args, 1)));
+		List<String> expected = pages(pdfFile);
+
+		// Objects are renumbered, however pages are the same:
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertEquals(expected, pages(pdfFile));
+
+		// The first object is the linearization dictionary, the hint stream is followed by the first page:
+		String content = new String(FileUtils.readFileToByteArray(pdfFile), StandardCharsets.ISO_8859_1);
+		Matcher matcher = Pattern
+		            .compile("/Linearized 1/L (\\d+)/H \\[(\\d+) (\\d+)\\]/O (\\d+)/E (\\d+)/N (\\d+)/T (\\d+)")
+		            .matcher(content);
+		assertTrue(matcher.find() && matcher.start() < 1024);
+		assertTrue(content.indexOf(" 0 obj") < matcher.start());
+		assertTrue(content.indexOf(" 0 obj", matcher.end()) > content.indexOf("trailer"));
+
+		PdfReader reader = new PdfReader(pdfFile.getPath());
+		try {
+			assertEquals(pdfFile.length(), Long.parseLong(matcher.group(1)));
+			int hintOffset = Integer.parseInt(matcher.group(2));
+			assertTrue(content.startsWith("stream", content.indexOf(">>", hintOffset) + 3));
+			int firstPageOffset = hintOffset + Integer.parseInt(matcher.group(3));
+			assertTrue(content.startsWith(matcher.group(4) + " 0 obj", firstPageOffset));
+			assertEquals(reader.getPageOrigRef(1).getNumber(), Integer.parseInt(matcher.group(4)));
+			assertTrue(content.startsWith(reader.getPageOrigRef(2).getNumber() + " 0 obj",
+			            Integer.parseInt(matcher.group(5))));
+			assertEquals(reader.getNumberOfPages(), Integer.parseInt(matcher.group(6)));
+			assertTrue(content.startsWith("\n0000000000 65535 f", Integer.parseInt(matcher.group(7))));
+		}
+		finally {
+			reader.close();
+		}
+
+		// The intermediate file is created next to the output and removed:
+		assertEquals(0, OUTPUT_DIR.list((dir, name) -> name.startsWith("." + pdfFile.getName())).length);
+
+		assertEquals(ExitCode.INVALID_OPTION,
+		            MergeToPdf.processOptions(ArrayUtils.insert(1, args, "--" + Opt.objectStreams.value())));
+	}
+
+	@Test
+	public void testMergePageSelection() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_page_selection.pdf");
+		String pdf = new File(IMAGES_DIR, "1_no_dpi.pdf").getPath();
+		String tiff = new File(IMAGES_DIR, "6-7_fits_rotate-scale.tif").getPath();
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(
+		            new String[] { "--" + Opt.merge, pdf, tiff, pdf, tiff, pdfFile.getPath() }));
+		assertEquals(6, BatchTest.getNumberOfPages(pdfFile));
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(new String[] { "--" + Opt.merge, pdf + "[!last]",
+		        tiff + "[2]", pdf + "[1-last]", tiff + "[!1]", pdfFile.getPath() }));
+		assertEquals(3, BatchTest.getNumberOfPages(pdfFile));
+
+		assertEquals(ExitCode.INVALID_OPTION, MergeToPdf.processOptions(
+		            new String[] { "--" + Opt.merge, pdf + "[0]", tiff, pdfFile.getPath() }));
+	}
+
+	@Test
+	public void testMergeMaxDpi() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_max_dpi.pdf");
+		String[] args = new String[] { "--" + Opt.merge, "--" + Opt.dpi.value(), "--" + Opt.maxDpi.value(), "72",
+		        new File(IMAGES_DIR, "2_dpi_standard.tiff").getPath(), new File(IMAGES_DIR, "3_dpi.tiff").getPath(),
+		        pdfFile.getPath() };
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertEquals(IMAGE_WIDTH, imageWidth(pdfFile, 1));
+		// Image with 144 DPI is resampled to half of its size:
+		assertEquals(IMAGE_WIDTH / 2, imageWidth(pdfFile, 2));
+		Rectangle pageSize = pageSize(pdfFile, 2);
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(ArrayUtils.removeAll(args, 2, 3)));
+		assertEquals(IMAGE_WIDTH, imageWidth(pdfFile, 2));
+		assertTrue(pageSize.equals(pageSize(pdfFile, 2)));
+
+		args[3] = "0";
+		assertEquals(ExitCode.INVALID_OPTION, MergeToPdf.processOptions(args));
+	}
+
+	@Test
+	public void testMergeJpeg() throws Exception {
+		File jpegFile = new File(OUTPUT_DIR, "merged jpeg.jpg");
+		File pdfFile = new File(OUTPUT_DIR, "merged_jpeg.pdf");
+		BufferedImage image = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = image.createGraphics();
+		g2d.setColor(Color.RED);
+		g2d.fillOval(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
+		g2d.dispose();
+		ImageIO.write(image, "jpeg", jpegFile);
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(
+		            new String[] { "--" + Opt.merge, jpegFile.getPath(), jpegFile.getPath(), pdfFile.getPath() }));
+
+		// The content of JPEG file is copied as it is:
+		PdfReader reader = new PdfReader(pdfFile.getPath());
+		try {
+			PdfDictionary xObjects = reader.getPageN(2).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+			PRStream stream = (PRStream) xObjects.getAsStream(xObjects.getKeys().iterator().next());
+			assertEquals(PdfName.DCTDECODE, stream.getAsName(PdfName.FILTER));
+			assertTrue(Arrays.equals(FileUtils.readFileToByteArray(jpegFile), PdfReader.getStreamBytesRaw(stream)));
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testMergePng() throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_png.pdf");
+		List<String> args = new ArrayList<>();
+		args.add("--" + Opt.merge);
+
+		for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_INDEXED,
+		        BufferedImage.TYPE_BYTE_GRAY }) {
+			BufferedImage image = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, type);
+			Graphics2D g2d = image.createGraphics();
+			g2d.setColor(Color.RED);
+			g2d.fillOval(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
+			g2d.dispose();
+
+			File pngFile = new File(OUTPUT_DIR, "merged_png_" + type + ".png");
+			ImageIO.write(image, "png", pngFile);
+			args.add(pngFile.getPath());
+		}
+
+		args.add(pdfFile.getPath());
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args.toArray(new String[args.size()])));
+
+		// Image data of PNG files is copied as it is:
+		PdfReader reader = new PdfReader(pdfFile.getPath());
+		try {
+			for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+				PdfDictionary xObjects = reader.getPageN(page).getAsDict(PdfName.RESOURCES)
+				            .getAsDict(PdfName.XOBJECT);
+				PRStream stream = (PRStream) xObjects.getAsStream(xObjects.getKeys().iterator().next());
+				assertEquals(PdfName.FLATEDECODE, stream.getAsName(PdfName.FILTER));
+				assertTrue(Arrays.equals(idat(new File(args.get(page))), PdfReader.getStreamBytesRaw(stream)));
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Returns the concatenated data of {@code IDAT} chunks of given PNG file.
+	 */
+	private static byte[] idat(File pngFile) throws IOException {
+		ByteArrayOutputStream idat = new ByteArrayOutputStream();
+		ByteBuffer png = ByteBuffer.wrap(FileUtils.readFileToByteArray(pngFile));
+		png.position(8);
+
+		while (png.hasRemaining()) {
+			int length = png.getInt();
+			byte[] type = new byte[4];
+			png.get(type);
+			if ("IDAT".equals(new String(type, StandardCharsets.US_ASCII))) {
+				idat.write(png.array(), png.position(), length);
+			}
+			png.position(png.position() + length + 4);
+		}
+
+		return idat.toByteArray();
+	}
+
+	@Test
+	public void testPageSizes() throws Exception {
+		File pngFile = new File(OUTPUT_DIR, "page_sizes.png");
+		ImageIO.write(new BufferedImage(IMAGE_WIDTH, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB), "png", pngFile);
+		List<String> inputs = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+		inputs.add(new File(IMAGES_DIR, "6-7_fits_rotate-scale.tif").getPath() + "[2]");
+		inputs.add(pngFile.getPath());
+
+		assertPageSizes(inputs, MergeOptions.builder().scaleToDpi(true).build());
+		assertPageSizes(inputs, MergeOptions.builder().scaleToDpi(true).scaleToPage("5").border(10).build());
+
+		// Malformed header is read by iText, which tolerates too short IHDR chunk but not negative chunk length:
+		File malformedFile = new File(OUTPUT_DIR, "page_sizes_malformed.png");
+		byte[] png = FileUtils.readFileToByteArray(pngFile);
+		FileUtils.writeByteArrayToFile(malformedFile, ByteBuffer.wrap(png).putInt(8, 5).array());
+		assertPageSizes(Collections.singletonList(malformedFile.getPath()), MergeOptions.builder().build());
+
+		FileUtils.writeByteArrayToFile(malformedFile, ByteBuffer.wrap(png).putInt(8, -1).array());
+		try (MergeEngine engine = new MergeEngine(MergeOptions.builder().build())) {
+			engine.pageSizes(malformedFile.getPath());
+			fail("Malformed PNG file is not reported");
+		}
+		catch (IOException e) {
+			assertEquals("Corrupted PNG file.", e.getMessage());
+		}
+	}
+
+	/**
+	 * Asserts that page sizes planned from headers are the ones of merged pages.
+	 */
+	private static void assertPageSizes(List<String> inputs, MergeOptions options) throws Exception {
+		File pdfFile = new File(OUTPUT_DIR, "merged_page_sizes.pdf");
+
+		try (MergeEngine engine = new MergeEngine(options)) {
+			List<Rectangle> pageSizes = new ArrayList<>();
+			for (String input : inputs) {
+				pageSizes.addAll(engine.pageSizes(input));
+			}
+
+			engine.merge(inputs, pdfFile.getPath());
+
+			PdfReader reader = new PdfReader(pdfFile.getPath());
+			try {
+				assertEquals(pageSizes.size(), reader.getNumberOfPages());
+				for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+					Rectangle pageSize = reader.getPageSizeWithRotation(page);
+					assertEquals(pageSizes.get(page - 1).getWidth(), pageSize.getWidth(), 0.01);
+					assertEquals(pageSizes.get(page - 1).getHeight(), pageSize.getHeight(), 0.01);
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the size of given page.
+	 */
+	private static Rectangle pageSize(File pdfFile, int page) throws IOException {
+		PdfReader reader = new PdfReader(pdfFile.getPath());
+		try {
+			return reader.getPageSize(page);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Returns the width in pixels of the image on given page.
+	 */
+	private static int imageWidth(File pdfFile, int page) throws IOException {
+		PdfReader reader = new PdfReader(pdfFile.getPath());
+		try {
+			PdfDictionary xObjects = reader.getPageN(page).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+			PdfStream image = xObjects.getAsStream(xObjects.getKeys().iterator().next());
+			return image.getAsNumber(PdfName.WIDTH).intValue();
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Returns the object numbers of images used by the pages of given file.
+	 */
+	private static Set<Integer> imageNumbers(File pdfFile) throws IOException {
+		Set<Integer> numbers = new HashSet<>();
+		PdfReader reader = new PdfReader(pdfFile.getPath());
+		try {
+			for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+				PdfDictionary xObjects = reader.getPageN(page).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+				if (xObjects != null) {
+					for (PdfName key : xObjects.getKeys()) {
+						numbers.add(xObjects.getAsIndirectObject(key).getNumber());
+					}
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return numbers;
+	}
+
+	@Test
+	public void testMergeAtomicOutput() throws Exception {
+		File outputDir = new File(OUTPUT_DIR, "atomic");
+		FileUtils.deleteDirectory(outputDir);
+		File pdfFile = new File(outputDir, "merged.pdf");
+		String[] args = new String[] { "--" + Opt.merge, "--" + Opt.fsync.value(), "full",
+		        new File(IMAGES_DIR, "font_Arial.pdf").getPath(), new File(IMAGES_DIR, "1_no_dpi.pdf").getPath(),
+		        pdfFile.getPath() };
+
+		assertEquals(ExitCode.OK, MergeToPdf.processOptions(args));
+		assertEquals(Collections.singletonList(pdfFile.getName()), Arrays.asList(outputDir.list()));
+		long length = pdfFile.length();
+
+		// Failed merge keeps the previous output and removes the temporary file:
+		args[4] = new File(IMAGES_DIR, "missing.pdf").getPath();
+		try {
+			MergeToPdf.processOptions(args);
+			fail("Merge should fail");
+		}
+		catch (IOException e) {
+			// Expected
+		}
+		assertEquals(Collections.singletonList(pdfFile.getName()), Arrays.asList(outputDir.list()));
+		assertEquals(length, pdfFile.length());
+
+		args[2] = "sometimes";
+		assertEquals(ExitCode.INVALID_OPTION, MergeToPdf.processOptions(args));
+	}
+
 	private static void runTest(String[] args, String testResourceSuffix) {
 		try {
 			// Introduce a random part into the file name to avoid the filename collision. 
@@ -274,6 +865,30 @@ public class MergeTest {
 		}
 	}
 
+	/**
+	 * Returns the size and the content of each page of given file.
+	 */
+	private static List<String> pages(File pdfFile) throws IOException {
+		List<String> pages = new ArrayList<>();
+		PdfReader reader = new PdfReader(pdfFile.getPath());
+		try {
+			for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+				pages.add(reader.getPageSizeWithRotation(page) + "\n"
+				            + new String(reader.getPageContent(page), StandardCharsets.ISO_8859_1));
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return pages;
+	}
+
+	private static String dump(File pdfFile) throws IOException {
+		StringWriter pdfDump = new StringWriter();
+		PdfContentReaderTool.listContentStream(pdfFile, new PrintWriter(pdfDump));
+		return pdfDump.toString();
+	}
+
 	/**
 	 * This method will re-create all images in test resources. After this function is run:
 	 * <ul>
@@ -286,13 +901,13 @@ public class MergeTest {
 	private static void recreateTestImages() {
 		createImage(IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2, "0_extact", -1, BufferedImage.TYPE_INT_RGB);
 		createImage(IMAGE_WIDTH, IMAGE_HEIGHT, "1_no_dpi", -1, BufferedImage.TYPE_INT_RGB);
-		createImage(IMAGE_WIDTH, IMAGE_HEIGHT, "2_dpi_standard", MergeToPdf.PDF_DPI, BufferedImage.TYPE_INT_RGB);
-		createImage(IMAGE_WIDTH, IMAGE_HEIGHT, "3_dpi", MergeToPdf.PDF_DPI * 2, BufferedImage.TYPE_INT_RGB);
+		createImage(IMAGE_WIDTH, IMAGE_HEIGHT, "2_dpi_standard", MergeEngine.PDF_DPI, BufferedImage.TYPE_INT_RGB);
+		createImage(IMAGE_WIDTH, IMAGE_HEIGHT, "3_dpi", MergeEngine.PDF_DPI * 2, BufferedImage.TYPE_INT_RGB);
 		createImage(IMAGE_WIDTH - IMAGE_SIZE, IMAGE_SIZE, "4_fits", -1, BufferedImage.TYPE_BYTE_BINARY);
-		createImage(IMAGE_SIZE, IMAGE_HEIGHT + IMAGE_SIZE, "5_fits_scale", MergeToPdf.PDF_DPI,
+		createImage(IMAGE_SIZE, IMAGE_HEIGHT + IMAGE_SIZE, "5_fits_scale", MergeEngine.PDF_DPI,
 		            BufferedImage.TYPE_INT_RGB);
-		createImage(IMAGE_HEIGHT, IMAGE_SIZE, "6_fits_rotate", MergeToPdf.PDF_DPI, BufferedImage.TYPE_INT_RGB);
-		createImage(IMAGE_HEIGHT * 2, IMAGE_SIZE * 2, "7_fits_rotate_scale", MergeToPdf.PDF_DPI,
+		createImage(IMAGE_HEIGHT, IMAGE_SIZE, "6_fits_rotate", MergeEngine.PDF_DPI, BufferedImage.TYPE_INT_RGB);
+		createImage(IMAGE_HEIGHT * 2, IMAGE_SIZE * 2, "7_fits_rotate_scale", MergeEngine.PDF_DPI,
 		            BufferedImage.TYPE_INT_RGB);
 	}
 